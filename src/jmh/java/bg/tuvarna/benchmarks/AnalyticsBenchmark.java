@@ -0,0 +1,60 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.ColumnarStudentRepository;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import bg.tuvarna.service.AnalyticsService;
+import bg.tuvarna.service.CohortStatistics;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Бенчмарк за статистиките по випуски ({@link AnalyticsService#compute(int)}) върху синтетичен
+ * регистър с обектното или колонното хранилище. Броят на нишките се задава с
+ * {@code -jvmArgsAppend -XX:ActiveProcessorCount=N}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AnalyticsBenchmark {
+  @Param({"1000000"})
+  public int size;
+
+  @Param({"false", "true"})
+  public boolean columnar;
+
+  @Param({"10"})
+  public int topCount;
+
+  private AnalyticsService service;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StudentRepository repository =
+        columnar ? new ColumnarStudentRepository() : new IndexedStudentRepository();
+    for (Student student : SyntheticRegistry.students(size)) {
+      repository.save(student);
+    }
+    service = new AnalyticsService(repository);
+  }
+
+  @Benchmark
+  public CohortStatistics compute() {
+    return service.compute(topCount);
+  }
+}
@@ -0,0 +1,72 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.Compression;
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.persistence.JsonRegistryFile;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Сравнява размера на файла и времето за запис и четене на един и същ синтетичен регистър без
+ * компресия, с gzip и с блоковата компресия. За всеки формат се отчита най-доброто от няколко
+ * повторения.
+ *
+ * <pre>
+ * java -cp target/OOPStudents-1.0-benchmarks.jar bg.tuvarna.benchmarks.CompressionTradeoff 1000000
+ * </pre>
+ */
+public final class CompressionTradeoff {
+  private static final int REPETITIONS = 5;
+
+  private CompressionTradeoff() {}
+
+  public static void main(String[] args) throws IOException {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    List<Student> students = SyntheticRegistry.students(size);
+    Path directory = Files.createTempDirectory("compression-");
+    System.out.printf("Students: %d%n", size);
+    System.out.printf(
+        "%-6s %12s %8s %10s %10s%n", "Format", "Size (KB)", "Ratio", "Write ms", "Read ms");
+    long plainSize = 0;
+    for (Compression compression : Compression.values()) {
+      Path file = directory.resolve("registry.json" + compression.getExtension());
+      long write = Long.MAX_VALUE;
+      long read = Long.MAX_VALUE;
+      for (int i = 0; i < REPETITIONS; i++) {
+        long start = System.nanoTime();
+        new JsonRegistryFile(JsonCodec.shared())
+            .write(file, JsonNodeFactory.instance.objectNode(), students);
+        write = Math.min(write, System.nanoTime() - start);
+
+        StudentRepository repository = new IndexedStudentRepository();
+        start = System.nanoTime();
+        try (JsonRegistryFile format = new JsonRegistryFile(JsonCodec.shared())) {
+          format.read(file, repository);
+        }
+        read = Math.min(read, System.nanoTime() - start);
+        if (repository.count() != size) {
+          throw new IllegalStateException("Read " + repository.count() + " students.");
+        }
+      }
+      long fileSize = Files.size(file);
+      if (compression == Compression.NONE) {
+        plainSize = fileSize;
+      }
+      System.out.printf(
+          "%-6s %12d %8.2f %10d %10d%n",
+          compression,
+          fileSize / 1024,
+          (double) plainSize / fileSize,
+          write / 1_000_000,
+          read / 1_000_000);
+      Files.delete(file);
+    }
+    Files.delete(directory);
+  }
+}
@@ -0,0 +1,289 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.ColumnarStudentRepository;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import bg.tuvarna.service.StudentService;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Многонишков стрес тест на StudentService и хранилищата. Няколко нишки изпълняват едновременно
+ * едни и същи промени върху едни и същи факултетни номера, докато отделна нишка прави справки:
+ *
+ * <ol>
+ *   <li>enroll - всички нишки записват едни и същи студенти; за всеки номер трябва да успее
+ *       точно един запис;
+ *   <li>enrollin - всички нишки записват студентите в задължителните дисциплини от първи курс;
+ *       за всяка дисциплина трябва да успее точно един запис;
+ *   <li>addgrade - всички нишки поставят различни оценки; всяка дисциплина трябва да е оценена
+ *       с една от поставените оценки, а натрупаният среден успех - да съвпада с курсовете;
+ *   <li>advance - всички нишки преместват студентите в следващ курс. Студентите нямат курсове
+ *       след първата година, затова всяко преместване успява; при загубена промяна годината на
+ *       студента ще е по-малка от 1 + броя на нишките, а индексът по година - неточен.
+ * </ol>
+ *
+ * <p>Тестът се изпълнява с обектното и с колонното хранилище и завършва с код 1 при нарушение.
+ *
+ * <pre>
+ * java -cp target/OOPStudents-1.0-benchmarks.jar bg.tuvarna.benchmarks.ConcurrencyStressTest \
+ *     [students] [threads] [rounds]
+ * </pre>
+ */
+public final class ConcurrencyStressTest {
+  private static final Program PROGRAM = Program.CS;
+  private static final double[] GRADES = {3.0, 4.0, 5.0, 6.0};
+
+  private final StudentRepository repository;
+  private final int students;
+  private final int threads;
+  private final List<Discipline> disciplines = new ArrayList<>();
+  private final List<String> failures = new ArrayList<>();
+
+  private ConcurrencyStressTest(StudentRepository repository, int students, int threads) {
+    this.repository = repository;
+    this.students = students;
+    this.threads = threads;
+    for (Discipline discipline : PROGRAM.getDisciplines()) {
+      if (discipline.getYear() == 1 && discipline.getIsMandatory()) {
+        disciplines.add(discipline);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int students = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    System.out.printf("Students: %d, threads: %d, rounds: %d%n", students, threads, rounds);
+    boolean failed = false;
+    for (int round = 0; round < rounds; round++) {
+      failed |= !run("IndexedStudentRepository", new IndexedStudentRepository(), students, threads);
+      failed |=
+          !run("ColumnarStudentRepository", new ColumnarStudentRepository(), students, threads);
+    }
+    System.out.println(failed ? "FAILED" : "OK");
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static boolean run(String name, StudentRepository repository, int students, int threads)
+      throws InterruptedException {
+    ConcurrencyStressTest test = new ConcurrencyStressTest(repository, students, threads);
+    long started = System.nanoTime();
+    test.execute();
+    System.out.printf(
+        "%-26s %6d ms %s%n",
+        name,
+        (System.nanoTime() - started) / 1_000_000,
+        test.failures.isEmpty() ? "ok" : test.failures.size() + " failures");
+    test.failures.stream().limit(10).forEach(failure -> System.out.println("  " + failure));
+    return test.failures.isEmpty();
+  }
+
+  private void execute() throws InterruptedException {
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicInteger readerErrors = new AtomicInteger();
+    Thread reader = Thread.ofPlatform().start(() -> read(done, readerErrors));
+    try {
+      AtomicInteger enrolled = new AtomicInteger();
+      race(
+          (service, thread) -> {
+            for (int i = 0; i < students; i++) {
+              if (service.enrollStudent("Student" + i, PROGRAM, 1, facultyNumber(i))) {
+                enrolled.incrementAndGet();
+              }
+            }
+          });
+      expect(enrolled.get() == students, "enroll succeeded " + enrolled.get() + " times");
+      expect(repository.count() == students, "repository has " + repository.count() + " students");
+
+      AtomicInteger enrolledIn = new AtomicInteger();
+      race(
+          (service, thread) -> {
+            for (int i = 0; i < students; i++) {
+              for (Discipline discipline : disciplines) {
+                if (service.enrollIn(facultyNumber(i), discipline.name())) {
+                  enrolledIn.incrementAndGet();
+                }
+              }
+            }
+          });
+      int expectedCourses = students * disciplines.size();
+      expect(
+          enrolledIn.get() == expectedCourses,
+          "enrollin succeeded " + enrolledIn.get() + " times");
+
+      race(
+          (service, thread) -> {
+            double grade = GRADES[thread % GRADES.length];
+            for (int i = 0; i < students; i++) {
+              for (Discipline discipline : disciplines) {
+                service.addGrade(facultyNumber(i), discipline.name(), grade);
+              }
+            }
+          });
+      checkGrades();
+
+      AtomicInteger advanced = new AtomicInteger();
+      race(
+          (service, thread) -> {
+            for (int i = 0; i < students; i++) {
+              if (service.advance(facultyNumber(i))) {
+                advanced.incrementAndGet();
+              }
+            }
+          });
+      expect(
+          advanced.get() == students * threads, "advance succeeded " + advanced.get() + " times");
+      checkYears();
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    expect(readerErrors.get() == 0, "reader failed " + readerErrors.get() + " times");
+  }
+
+  /** Промяна, която всяка нишка изпълнява със собствена услуга. */
+  private interface Work {
+    void run(StudentService service, int thread);
+  }
+
+  /** Пуска всички нишки едновременно и изчаква да завършат. */
+  private void race(Work work) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    Set<Throwable> errors = ConcurrentHashMap.newKeySet();
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      StudentService service = new StudentService(repository, nullStream());
+      service.setQuiet(true);
+      workers.add(
+          Thread.ofPlatform()
+              .start(
+                  () -> {
+                    try {
+                      start.await();
+                      work.run(service, thread);
+                    } catch (Throwable e) {
+                      errors.add(e);
+                    }
+                  }));
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    for (Throwable error : errors) {
+      failures.add("worker threw " + error);
+    }
+  }
+
+  private void checkGrades() {
+    Map<Discipline, Set<String>> indexed = new EnumMap<>(Discipline.class);
+    for (Discipline discipline : disciplines) {
+      Set<String> facultyNumbers = new HashSet<>();
+      for (Student student : repository.findByDiscipline(discipline)) {
+        facultyNumbers.add(student.getFacultyNumber());
+      }
+      indexed.put(discipline, facultyNumbers);
+    }
+    for (int i = 0; i < students; i++) {
+      Student student = repository.findByFacultyNumber(facultyNumber(i));
+      double sum = 0;
+      for (Discipline discipline : disciplines) {
+        Course course = student.getCourse(discipline);
+        if (course == null || !course.isGraded() || !isSubmitted(course.getGrade())) {
+          failures.add(facultyNumber(i) + " has course " + course);
+          return;
+        }
+        sum += course.getGrade();
+        if (!indexed.get(discipline).contains(facultyNumber(i))) {
+          failures.add(facultyNumber(i) + " is missing from the " + discipline + " index");
+          return;
+        }
+      }
+      double average = sum / disciplines.size();
+      if (Math.abs(student.getAverageGrade() - average) > 1e-9) {
+        failures.add(facultyNumber(i) + " has average " + student.getAverageGrade());
+        return;
+      }
+    }
+  }
+
+  private void checkYears() {
+    int finalYear = 1 + threads;
+    int indexed = 0;
+    for (int year = 1; year <= finalYear; year++) {
+      int size = repository.findByProgramAndCurrentYear(PROGRAM, year).size();
+      expect(
+          year == finalYear || size == 0, size + " students are still indexed in year " + year);
+      indexed += size;
+    }
+    expect(indexed == students, indexed + " students are indexed by year");
+    for (int i = 0; i < students; i++) {
+      Student student = repository.findByFacultyNumber(facultyNumber(i));
+      if (student.getCurrentYear() != finalYear || student.getStatus() != Status.ACTIVE) {
+        failures.add(facultyNumber(i) + " is in year " + student.getCurrentYear());
+        return;
+      }
+    }
+  }
+
+  /** Прави справки, докато промените не завършат; справките не бива да хвърлят изключения. */
+  private void read(AtomicBoolean done, AtomicInteger errors) {
+    StudentService service = new StudentService(repository, nullStream());
+    int i = 0;
+    while (!done.get()) {
+      try {
+        String fn = facultyNumber(i++ % students);
+        service.print(fn);
+        service.report(fn);
+        service.printAll(PROGRAM.name(), 1 + i % 2);
+        service.protocol(disciplines.get(i % disciplines.size()).name());
+        for (Student student : repository.findAll()) {
+          student.getAverageGrade();
+        }
+      } catch (RuntimeException e) {
+        errors.incrementAndGet();
+      }
+    }
+  }
+
+  private static boolean isSubmitted(double grade) {
+    for (double submitted : GRADES) {
+      if (submitted == grade) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void expect(boolean condition, String failure) {
+    if (!condition) {
+      failures.add(failure);
+    }
+  }
+
+  private static String facultyNumber(int index) {
+    return "S" + index;
+  }
+
+  private static PrintStream nullStream() {
+    return new PrintStream(OutputStream.nullOutputStream());
+  }
+}
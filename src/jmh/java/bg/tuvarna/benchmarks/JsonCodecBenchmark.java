@@ -0,0 +1,110 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.JsonCodec;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Сравнява сериализацията и десериализацията на пакет студенти при студен и топъл JSON кодек.
+ * Студеният вариант създава нов ObjectMapper за всеки пакет, както при създаването на нов
+ * ObjectMapper при всяко затваряне на файл, и затова изгражда наново сериализаторите. Топлите
+ * варианти използват общия кодек - с рефлексия или с Blackbird.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+  @Param({"10", "1000"})
+  public int batch;
+
+  private final JsonCodec warm = new JsonCodec(false);
+  private final JsonCodec blackbird = new JsonCodec(true);
+  private List<Student> students;
+  private byte[] json;
+
+  @Setup
+  public void setUp() throws IOException {
+    students = SyntheticRegistry.students(batch);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = warm.getFactory().createGenerator(out)) {
+      generator.writeStartArray();
+      for (Student student : students) {
+        warm.writeStudent(generator, student);
+      }
+      generator.writeEndArray();
+    }
+    json = out.toByteArray();
+  }
+
+  @Benchmark
+  public void serializeCold() throws IOException {
+    serialize(new JsonCodec(false));
+  }
+
+  @Benchmark
+  public void serializeWarm() throws IOException {
+    serialize(warm);
+  }
+
+  @Benchmark
+  public void serializeBlackbird() throws IOException {
+    serialize(blackbird);
+  }
+
+  @Benchmark
+  public void deserializeCold(Blackhole blackhole) throws IOException {
+    deserialize(new JsonCodec(false), blackhole);
+  }
+
+  @Benchmark
+  public void deserializeWarm(Blackhole blackhole) throws IOException {
+    deserialize(warm, blackhole);
+  }
+
+  @Benchmark
+  public void deserializeBlackbird(Blackhole blackhole) throws IOException {
+    deserialize(blackbird, blackhole);
+  }
+
+  private void serialize(JsonCodec codec) throws IOException {
+    try (JsonGenerator generator =
+        codec.getFactory().createGenerator(OutputStream.nullOutputStream())) {
+      generator.writeStartArray();
+      for (Student student : students) {
+        codec.writeStudent(generator, student);
+      }
+      generator.writeEndArray();
+    }
+  }
+
+  private void deserialize(JsonCodec codec, Blackhole blackhole) throws IOException {
+    try (JsonParser parser = codec.getFactory().createParser(json)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        blackhole.consume(codec.readStudent(parser));
+      }
+    }
+  }
+}
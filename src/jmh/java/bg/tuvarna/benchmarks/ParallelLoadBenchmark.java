@@ -0,0 +1,66 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.persistence.JsonRegistryFile;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Сравнява зареждането на JSON файл от различен брой нишки. При workers = 1 файлът се чете
+ * последователно; пропускателната способност при повече нишки показва как се мащабира
+ * паралелното четене спрямо броя на ядрата.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelLoadBenchmark {
+  @Param({"100000", "1000000"})
+  public int size;
+
+  @Param({"1", "2", "4", "8"})
+  public int workers;
+
+  @Param({"false", "true"})
+  public boolean lazy;
+
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = SyntheticRegistry.writeJson(size);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public StudentRepository load() throws IOException {
+    StudentRepository repository = new IndexedStudentRepository();
+    try (JsonRegistryFile format = new JsonRegistryFile(JsonCodec.shared(), lazy, workers)) {
+      format.read(file, repository);
+    }
+    return repository;
+  }
+}
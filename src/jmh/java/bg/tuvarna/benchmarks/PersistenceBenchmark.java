@@ -0,0 +1,102 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.cli.CommandLineRunner;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.BinaryRegistryFile;
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Бенчмаркове за отварянето и записа на файл с регистъра. Зареждането на един и същ регистър се
+ * сравнява в три варианта: поточно от JSON ({@link #openFile()}), от двоичния формат
+ * ({@link #readBinary()}) и през цялото дърво от JsonNode ({@link #readTree()}), както се
+ * зареждаше файлът преди поточното четене.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark {
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  private Path file;
+  private Path binaryFile;
+  private CommandLineRunner openRunner;
+  private CommandLineRunner saveRunner;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = SyntheticRegistry.writeJson(size);
+    binaryFile = Files.createTempFile("registry-" + size + "-", BinaryRegistryFile.EXTENSION);
+    new BinaryRegistryFile(JsonCodec.shared())
+        .write(binaryFile, JsonNodeFactory.instance.objectNode(), SyntheticRegistry.students(size));
+    PrintStream nullOut = new PrintStream(OutputStream.nullOutputStream());
+    openRunner = new CommandLineRunner(nullOut, true);
+    saveRunner = new CommandLineRunner(nullOut, true);
+    saveRunner.openFile(file.toString());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    saveRunner.closeFile();
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(binaryFile);
+  }
+
+  @Benchmark
+  public void openFile() {
+    openRunner.openFile(file.toString());
+    openRunner.closeFile();
+  }
+
+  @Benchmark
+  public StudentRepository readBinary() throws IOException {
+    StudentRepository repository = new IndexedStudentRepository();
+    try (BinaryRegistryFile format = new BinaryRegistryFile(JsonCodec.shared())) {
+      format.read(binaryFile, repository);
+    }
+    return repository;
+  }
+
+  @Benchmark
+  public StudentRepository readTree() throws IOException {
+    ObjectMapper objectMapper = JsonCodec.shared().getObjectMapper();
+    StudentRepository repository = new IndexedStudentRepository();
+    JsonNode students = objectMapper.readTree(file.toFile()).get("students");
+    for (JsonNode student : students) {
+      repository.save(objectMapper.treeToValue(student, Student.class));
+    }
+    return repository;
+  }
+
+  @Benchmark
+  public void save() {
+    saveRunner.save();
+  }
+}
@@ -0,0 +1,58 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Бенчмаркове за търсенията в хранилището. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RepositoryBenchmark {
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  private StudentRepository repository;
+  private String[] facultyNumbers;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    repository = SyntheticRegistry.repository(size);
+
+    // Ключовете се подготвят предварително, за да не се измерва форматирането им
+    facultyNumbers = new String[4096];
+    for (int i = 0; i < facultyNumbers.length; i++) {
+      facultyNumbers[i] = SyntheticRegistry.facultyNumber((int) ((i * 7919L) % size));
+    }
+  }
+
+  @Benchmark
+  public Student findByFacultyNumber() {
+    next = (next + 1) & (facultyNumbers.length - 1);
+    return repository.findByFacultyNumber(facultyNumbers[next]);
+  }
+
+  @Benchmark
+  public List<Student> findByProgramAndCurrentYear() {
+    next = (next + 1) & 0xFFFF;
+    return repository.findByProgramAndCurrentYear(Program.values()[next % 3], 1 + (next & 3));
+  }
+}
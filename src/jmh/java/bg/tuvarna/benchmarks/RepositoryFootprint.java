@@ -0,0 +1,49 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.ColumnarStudentRepository;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import java.util.List;
+
+/**
+ * Сравнява паметта, заета от обектното и колонното хранилище с един и същ синтетичен регистър.
+ *
+ * <pre>
+ * java -cp target/OOPStudents-1.0-benchmarks.jar bg.tuvarna.benchmarks.RepositoryFootprint 1000000
+ * </pre>
+ */
+public final class RepositoryFootprint {
+  private RepositoryFootprint() {}
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    System.out.printf("Students: %d%n", size);
+    measure("IndexedStudentRepository", new IndexedStudentRepository(), size);
+    measure("ColumnarStudentRepository", new ColumnarStudentRepository(), size);
+  }
+
+  private static void measure(String name, StudentRepository repository, int size) {
+    long before = usedHeap();
+    List<Student> students = SyntheticRegistry.students(size);
+    for (Student student : students) {
+      repository.save(student);
+    }
+    // Колонното хранилище копира студентите, затова след зареждането те стават боклук
+    students = null;
+    long after = usedHeap();
+    System.out.printf(
+        "%-26s %8.1f MB (%d bytes per student)%n",
+        name,
+        (after - before) / (1024.0 * 1024.0),
+        (after - before) / Math.max(1, repository.count()));
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,198 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.cli.CommandLineRunner;
+import bg.tuvarna.metrics.LatencyHistogram;
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.server.RegistryServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Натоварващ тест за HTTP/JSON API. Стартира сървър върху синтетичен регистър на локалния адрес
+ * и го натоварва от зададен брой клиенти, всеки във своя виртуална нишка. Клиентите изпращат
+ * смес от справки и промени: 80% print, 10% report, 8% addgrade и 2% printall. Накрая се
+ * извеждат пропускателната способност и разпределението на латентността за всяка заявка.
+ *
+ * <pre>
+ * java -cp target/OOPStudents-1.0-benchmarks.jar bg.tuvarna.benchmarks.ServerLoadTest \
+ *     [students] [clients] [seconds] [url]
+ * </pre>
+ *
+ * <p>Ако е зададен url (например http://localhost:8080/api), се натоварва вече работещ сървър,
+ * отворил регистър със същия брой синтетични студенти.
+ */
+public final class ServerLoadTest {
+  private static final String[] OPERATIONS = {"print", "report", "addgrade", "printall"};
+  private static final String[] PROGRAMS = {"CS", "SE", "SIT"};
+
+  private final URI base;
+  private final HttpClient client;
+  /** Студенти, записани в поне една дисциплина, и по една тяхна дисциплина за addgrade. */
+  private final String[] facultyNumbers;
+  private final String[] disciplines;
+  private final int size;
+  private LatencyHistogram[] latencies;
+  private LongAdder errors;
+
+  private ServerLoadTest(URI base, int size, HttpClient client) {
+    this.base = base;
+    this.size = size;
+    this.client = client;
+    List<String> enrolled = new ArrayList<>();
+    List<String> enrolledDisciplines = new ArrayList<>();
+    for (Student student : SyntheticRegistry.students(Math.min(size, 10_000))) {
+      for (Course course : student.getCourses()) {
+        enrolled.add(student.getFacultyNumber());
+        enrolledDisciplines.add(course.getDiscipline().name());
+        break;
+      }
+    }
+    facultyNumbers = enrolled.toArray(String[]::new);
+    disciplines = enrolledDisciplines.toArray(String[]::new);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+    RegistryServer server = null;
+    URI base;
+    if (args.length > 3) {
+      base = URI.create(args[3].endsWith("/") ? args[3] : args[3] + "/");
+    } else {
+      server = startServer(size);
+      InetSocketAddress address = server.getAddress();
+      base =
+          URI.create(
+              "http://" + address.getHostString() + ":" + address.getPort()
+                  + RegistryServer.CONTEXT + "/");
+    }
+
+    try {
+      HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+      ServerLoadTest test = new ServerLoadTest(base, size, client);
+      System.out.printf("Students: %d, clients: %d, duration: %d s%n", size, clients, seconds);
+      // Загряване, за да се компилират горещите пътища и в клиента, и в сървъра
+      test.run(clients, Math.max(1, seconds / 5), false);
+      test.run(clients, seconds, true);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  /** Отваря синтетичен регистър и стартира сървър за него на свободен порт. */
+  private static RegistryServer startServer(int size) throws IOException {
+    CommandLineRunner runner =
+        new CommandLineRunner(new PrintStream(OutputStream.nullOutputStream()), true);
+    runner.openFile(SyntheticRegistry.writeJson(size).toString());
+    RegistryServer server =
+        new RegistryServer(runner, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    server.start();
+    return server;
+  }
+
+  private void run(int clients, int seconds, boolean report)
+      throws InterruptedException {
+    latencies = new LatencyHistogram[OPERATIONS.length];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+    errors = new LongAdder();
+    long started = System.nanoTime();
+    long deadline = started + seconds * 1_000_000_000L;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      SplittableRandom random = new SplittableRandom(SyntheticRegistry.SEED + i);
+      threads.add(Thread.ofVirtual().start(() -> client(random, deadline)));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (report) {
+      print(System.nanoTime() - started);
+    }
+  }
+
+  private void client(SplittableRandom random, long deadline) {
+    while (System.nanoTime() < deadline) {
+      int roll = random.nextInt(100);
+      int operation = roll < 80 ? 0 : roll < 90 ? 1 : roll < 98 ? 2 : 3;
+      HttpRequest request = request(operation, random);
+      long started = System.nanoTime();
+      try {
+        HttpResponse<byte[]> response =
+            client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+          errors.increment();
+        }
+      } catch (IOException e) {
+        errors.increment();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      latencies[operation].record(System.nanoTime() - started);
+    }
+  }
+
+  private HttpRequest request(int operation, SplittableRandom random) {
+    return switch (operation) {
+      case 0 -> get("students/" + SyntheticRegistry.facultyNumber(random.nextInt(size)));
+      case 1 ->
+          get("students/" + SyntheticRegistry.facultyNumber(random.nextInt(size)) + "/report");
+      case 2 -> {
+        int i = random.nextInt(facultyNumbers.length);
+        String body =
+            "{\"discipline\":\"" + disciplines[i] + "\",\"grade\":" + (2 + random.nextInt(5)) + "}";
+        yield HttpRequest.newBuilder(base.resolve("students/" + facultyNumbers[i] + "/grades"))
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+      }
+      default -> get(
+          "students?program=" + PROGRAMS[random.nextInt(PROGRAMS.length)]
+              + "&year=" + (1 + random.nextInt(4)));
+    };
+  }
+
+  private HttpRequest get(String path) {
+    return HttpRequest.newBuilder(base.resolve(path)).GET().build();
+  }
+
+  private void print(long elapsedNanos) {
+    long total = 0;
+    System.out.printf(
+        "%-10s %10s %10s %10s %10s %10s %10s%n",
+        "request", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      LatencyHistogram histogram = latencies[i];
+      total += histogram.getCount();
+      System.out.printf(
+          "%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+          OPERATIONS[i],
+          histogram.getCount(),
+          histogram.getCount() * 1e9 / elapsedNanos,
+          histogram.getValueAtPercentile(50) / 1e6,
+          histogram.getValueAtPercentile(90) / 1e6,
+          histogram.getValueAtPercentile(99) / 1e6,
+          histogram.getMaxNanos() / 1e6);
+    }
+    System.out.printf(
+        "Total: %d requests, %.1f req/s, %d errors%n",
+        total, total * 1e9 / elapsedNanos, errors.sum());
+  }
+}
@@ -0,0 +1,81 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.service.StudentService;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Бенчмаркове за операциите на StudentService. Изходът се пренасочва към нулев поток, така
+ * че се измерва само генерирането му.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ServiceBenchmark {
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  private StudentService service;
+  private String[] gradedFacultyNumbers;
+  private String[] gradedDisciplines;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    service =
+        new StudentService(
+            SyntheticRegistry.repository(size), new PrintStream(OutputStream.nullOutputStream()));
+    service.setQuiet(true);
+
+    // Студенти, записани в поне една дисциплина, за addGrade
+    gradedFacultyNumbers = new String[1024];
+    gradedDisciplines = new String[gradedFacultyNumbers.length];
+    int found = 0;
+    for (Student student : SyntheticRegistry.students(Math.min(size, 10_000))) {
+      for (Course course : student.getCourses()) {
+        gradedFacultyNumbers[found] = student.getFacultyNumber();
+        gradedDisciplines[found] = course.getDiscipline().name();
+        found++;
+        break;
+      }
+      if (found == gradedFacultyNumbers.length) {
+        break;
+      }
+    }
+  }
+
+  @Benchmark
+  public void protocol() {
+    service.protocol("PF");
+  }
+
+  @Benchmark
+  public void report() {
+    next = (next + 1) & (gradedFacultyNumbers.length - 1);
+    service.report(gradedFacultyNumbers[next]);
+  }
+
+  @Benchmark
+  public void addGrade() {
+    next = (next + 1) & (gradedFacultyNumbers.length - 1);
+    service.addGrade(gradedFacultyNumbers[next], gradedDisciplines[next], 3 + (next & 3));
+  }
+}
@@ -0,0 +1,109 @@
+package bg.tuvarna.benchmarks;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.persistence.JsonRegistryFile;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Генерира синтетичен регистър със зададен брой студенти. Генерирането е детерминирано по
+ * seed, така че всички бенчмаркове с един и същ размер работят върху едни и същи данни.
+ */
+public final class SyntheticRegistry {
+  public static final long SEED = 20621662L;
+
+  private static final Program[] PROGRAMS = Program.values();
+  private static final Discipline[] DISCIPLINES = Discipline.values();
+
+  private SyntheticRegistry() {}
+
+  /**
+   * Връща факултетния номер на i-тия генериран студент.
+   *
+   * @param index пореден номер на студента
+   * @return факултетен номер
+   */
+  public static String facultyNumber(int index) {
+    return String.format("%09d", index);
+  }
+
+  /**
+   * Генерира списък със студенти. Всеки студент е записан в дисциплините до текущия си курс,
+   * като около три четвърти от тях са оценени с оценка между 2 и 6.
+   *
+   * @param size брой студенти
+   * @return генерираните студенти
+   */
+  public static List<Student> students(int size) {
+    SplittableRandom random = new SplittableRandom(SEED);
+    List<Student> students = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Student student = new Student();
+      student.setName("Student " + i);
+      student.setFacultyNumber(facultyNumber(i));
+      student.setProgram(PROGRAMS[random.nextInt(PROGRAMS.length)]);
+      student.setCurrentYear(1 + random.nextInt(4));
+      student.setGroup(1 + random.nextInt(10));
+      int roll = random.nextInt(20);
+      student.setStatus(roll == 0 ? Status.DROPOUT : roll == 1 ? Status.GRADUATED : Status.ACTIVE);
+
+      for (Discipline discipline : DISCIPLINES) {
+        if (discipline.getYear() > student.getCurrentYear()
+            || (!discipline.getIsMandatory() && random.nextBoolean())) {
+          continue;
+        }
+        Course course = new Course();
+        course.setDiscipline(discipline);
+        course.setEnrolled(true);
+        if (random.nextInt(4) != 0) {
+          course.setGraded(true);
+          course.setGrade(2 + random.nextInt(9) * 0.5);
+        }
+        student.addCourse(course);
+      }
+      students.add(student);
+    }
+    return students;
+  }
+
+  /**
+   * Създава хранилище, попълнено със синтетични студенти.
+   *
+   * @param size брой студенти
+   * @return попълненото хранилище
+   */
+  public static StudentRepository repository(int size) {
+    StudentRepository repository = new IndexedStudentRepository();
+    for (Student student : students(size)) {
+      repository.save(student);
+    }
+    return repository;
+  }
+
+  /**
+   * Записва синтетичен регистър във временен JSON файл.
+   *
+   * @param size брой студенти
+   * @return пътят до създадения файл
+   * @throws IOException при грешка при запис
+   */
+  public static Path writeJson(int size) throws IOException {
+    Path file = Files.createTempFile("registry-" + size + "-", ".json");
+    file.toFile().deleteOnExit();
+    new JsonRegistryFile(JsonCodec.shared())
+        .write(file, JsonNodeFactory.instance.objectNode(), students(size));
+    return file;
+  }
+}
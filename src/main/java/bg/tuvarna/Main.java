@@ -1,10 +1,129 @@
 package bg.tuvarna;
 
 import bg.tuvarna.cli.CommandLineRunner;
+import bg.tuvarna.repositories.ColumnarStudentRepository;
+import bg.tuvarna.repositories.IndexedStudentRepository;
+import bg.tuvarna.repositories.StudentRepository;
+import bg.tuvarna.server.RegistryServer;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import javax.management.JMException;
 
 public class Main {
+    /** Портът на HTTP сървъра, ако не е зададен с --port. */
+    private static final int DEFAULT_PORT = 8080;
+
     public static void main(String[] args){
-        CommandLineRunner commandLineRunner = new CommandLineRunner();
+        List<String> arguments = Arrays.asList(args);
+        boolean columnar = arguments.contains("--columnar");
+        int batchIndex = arguments.indexOf("--batch");
+        if (batchIndex >= 0) {
+            if (batchIndex + 1 >= args.length) {
+                System.err.println(
+                        "Usage: --batch <commands_file> [--quiet] [--save] [--columnar]");
+                System.exit(2);
+            }
+            System.exit(runBatch(Path.of(args[batchIndex + 1]),
+                    arguments.contains("--quiet"), arguments.contains("--save"), columnar));
+        }
+        int serveIndex = arguments.indexOf("--serve");
+        if (serveIndex >= 0) {
+            int portIndex = arguments.indexOf("--port");
+            if (serveIndex + 1 >= args.length || portIndex + 1 == args.length) {
+                System.err.println("Usage: --serve <file_path> [--port <port>] [--journal]"
+                        + " [--lazy] [--watch] [--save] [--columnar]");
+                System.exit(2);
+            }
+            int port = portIndex >= 0 ? Integer.parseInt(args[portIndex + 1]) : DEFAULT_PORT;
+            serve(args[serveIndex + 1], port, arguments, columnar);
+            return;
+        }
+        CommandLineRunner commandLineRunner =
+                new CommandLineRunner(System.out, false, repository(columnar));
+        registerMBeans(commandLineRunner);
         commandLineRunner.run();
     }
+
+    /**
+     * Изпълнява команди от файл с буфериран изход.
+     *
+     * @return кодът на изход - 0, ако всички команди са изпълнени успешно, и 1, ако някоя е
+     *     отхвърлена или е завършила с грешка
+     */
+    private static int runBatch(
+            Path scriptPath, boolean quiet, boolean saveAtEnd, boolean columnar) {
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        CommandLineRunner commandLineRunner =
+                new CommandLineRunner(out, quiet, repository(columnar));
+        registerMBeans(commandLineRunner);
+        try {
+            return commandLineRunner.runBatch(scriptPath, saveAtEnd) == 0 ? 0 : 1;
+        } catch (IOException e) {
+            out.flush();
+            System.err.println("An error occurred while reading the commands file.");
+            return 2;
+        }
+    }
+
+    /**
+     * Отваря файл и го предоставя като HTTP/JSON API на локалния адрес. Сървърът работи, докато
+     * програмата не бъде спряна; тогава по желание запазва файла и затваря дневника.
+     */
+    private static void serve(String filePath, int port, List<String> arguments, boolean columnar) {
+        CommandLineRunner commandLineRunner =
+                new CommandLineRunner(System.out, false, repository(columnar));
+        commandLineRunner.openFile(filePath, arguments.contains("--journal"), false,
+                arguments.contains("--lazy"), null, arguments.contains("--watch"));
+        if (!commandLineRunner.isFileOpen()) {
+            System.exit(2);
+        }
+        registerMBeans(commandLineRunner);
+        RegistryServer server;
+        try {
+            server = new RegistryServer(commandLineRunner,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            System.err.println("The server could not be started: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        boolean saveAtEnd = arguments.contains("--save");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            commandLineRunner.finish(saveAtEnd);
+        }));
+        server.start();
+        InetSocketAddress address = server.getAddress();
+        System.out.println("Listening on http://" + address.getHostString() + ":"
+                + address.getPort() + RegistryServer.CONTEXT);
+    }
+
+    /**
+     * Създава хранилището на студентите. С --columnar студентите се пазят по колони, което
+     * заема по-малко памет при много големи регистри.
+     */
+    private static StudentRepository repository(boolean columnar) {
+        return columnar ? new ColumnarStudentRepository() : new IndexedStudentRepository();
+    }
+
+    /**
+     * Публикува метриките на регистъра в JMX. Грешка при публикуването не спира програмата.
+     */
+    private static void registerMBeans(CommandLineRunner commandLineRunner) {
+        try {
+            commandLineRunner.getMetrics().registerMBeans();
+        } catch (JMException e) {
+            System.err.println("Metrics could not be registered in JMX: " + e.getMessage());
+        }
+    }
 }
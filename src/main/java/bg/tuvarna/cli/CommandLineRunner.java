@@ -1,18 +1,36 @@
 package bg.tuvarna.cli;
 
+import bg.tuvarna.metrics.RegistryMetrics;
 import bg.tuvarna.models.Program;
 import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.BinaryRegistryFile;
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.persistence.JsonRegistryFile;
+import bg.tuvarna.persistence.Journal;
+import bg.tuvarna.persistence.RegistryFormat;
+import bg.tuvarna.persistence.RegistryWatcher;
+import bg.tuvarna.persistence.ShardedRegistryFile;
+import bg.tuvarna.repositories.IndexedStudentRepository;
 import bg.tuvarna.repositories.StudentRepository;
+import bg.tuvarna.service.AnalyticsService;
+import bg.tuvarna.service.GradeImportResult;
 import bg.tuvarna.service.StudentService;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.locks.Lock;
 
 /**
  * JsonEditor класът отговаря за работата с файлове, по-конкретно json, включващи информация за
@@ -23,19 +41,131 @@ public class CommandLineRunner {
 
   /** Текущият път до файл. */
   private Path currentFilePath;
-  /** Текущите данни. */
+  /** Текущите данни извън масива със студенти. */
   private ObjectNode currentData;
 
   private boolean isFileOpen;
-  /** Обектът от тип ObjectMapper отговаря за трансформацията между Java обект и JSON. */
-  private ObjectMapper objectMapper;
+  /** Кодекът, който отговаря за трансформацията между Java обект и JSON. */
+  private final JsonCodec jsonCodec = JsonCodec.shared();
+  /** Форматът на текущо отворения файл. */
+  private RegistryFormat currentFormat;
   /** Данните за студентите */
   private StudentRepository studentRepository;
+  /**
+   * Хранилището, подадено при създаването. Регистрите, разделени на шардове, се зареждат в
+   * собствено хранилище, а след затварянето им се използва отново това.
+   */
+  private final StudentRepository defaultRepository;
+  /** Услугите за работа със студентите. */
+  private StudentService studentService;
+  /** Услугите за статистики върху всички студенти. */
+  private AnalyticsService analyticsService;
+  /** Дневникът с промените за текущия файл или null, ако не се води дневник. */
+  private Journal journal;
+  /** Следенето на текущия файл за промени от други процеси или null. */
+  private RegistryWatcher watcher;
+  /** Контролната сума на текущия файл при последното му четене или запис от програмата. */
+  private long knownChecksum;
+  /**
+   * Отпечатъците на студентите във файла при последното му четене или запис от програмата по
+   * факултетен номер или null, ако файлът не се следи.
+   */
+  private Map<String, Long> diskFingerprints;
+  /** Потокът, в който се извеждат съобщенията и справките. */
+  private final PrintStream out;
+  /** Дали да се пропускат потвържденията за успешно изпълнени команди. */
+  private final boolean quiet;
+  /** Метриките за изпълнените команди, зарежданията и записите. */
+  private final RegistryMetrics metrics;
 
   public CommandLineRunner() {
-    objectMapper = new ObjectMapper();
+    this(System.out, false);
+  }
+
+  /**
+   * @param out потокът, в който се извеждат съобщенията и справките
+   * @param quiet дали да се пропускат потвържденията за успешно изпълнени команди
+   */
+  public CommandLineRunner(PrintStream out, boolean quiet) {
+    this(out, quiet, new IndexedStudentRepository());
+  }
+
+  /**
+   * @param out потокът, в който се извеждат съобщенията и справките
+   * @param quiet дали да се пропускат потвържденията за успешно изпълнени команди
+   * @param studentRepository хранилището, в което се зареждат студентите
+   */
+  public CommandLineRunner(PrintStream out, boolean quiet, StudentRepository studentRepository) {
+    this.out = out;
+    this.quiet = quiet;
     isFileOpen = false;
-    studentRepository = new StudentRepository();
+    defaultRepository = studentRepository;
+    metrics = new RegistryMetrics(studentRepository);
+    useRepository(studentRepository);
+  }
+
+  /**
+   * Превключва командите към друго хранилище.
+   *
+   * @param repository хранилището
+   */
+  private void useRepository(StudentRepository repository) {
+    studentRepository = repository;
+    studentService = new StudentService(repository, out);
+    studentService.setQuiet(quiet);
+    analyticsService = new AnalyticsService(repository, out);
+    metrics.setStudentRepository(repository);
+  }
+
+  /**
+   * Връща метриките на този регистър, например за да бъдат публикувани в JMX.
+   *
+   * @return метриките
+   */
+  public RegistryMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Връща хранилището, в което са заредени студентите от отворения файл.
+   *
+   * @return хранилището
+   */
+  public StudentRepository getStudentRepository() {
+    return studentRepository;
+  }
+
+  /**
+   * Проверява дали има отворен файл.
+   *
+   * @return true, ако има отворен файл
+   */
+  public boolean isFileOpen() {
+    return isFileOpen;
+  }
+
+  /**
+   * Създава услуга, която работи със същото хранилище и записва промените в същия дневник, но
+   * извежда съобщенията си в друг поток. Така съобщенията от паралелни заявки не се смесват.
+   *
+   * @param out потокът за съобщенията на услугата
+   * @return услугата
+   */
+  public StudentService createService(PrintStream out) {
+    StudentService service = new StudentService(studentRepository, out);
+    service.setJournal(journal);
+    return service;
+  }
+
+  /**
+   * Извежда потвърждение за успешно изпълнена команда, освен ако потвържденията са изключени.
+   *
+   * @param message съобщението
+   */
+  private void confirm(String message) {
+    if (!quiet) {
+      out.println(message);
+    }
   }
   /**
    * Отваря файл по зададен път, чете JSON данните и ги запазва в Student хранилището.
@@ -43,85 +173,398 @@ public class CommandLineRunner {
    * @param filePathString пътят към файла за отваряне.
    */
   public void openFile(String filePathString) {
+    openFile(filePathString, false);
+  }
+  /**
+   * Отваря файл по зададен път, чете JSON данните и ги запазва в Student хранилището. Ако до
+   * файла има дневник с промени, те се прилагат върху прочетените данни и воденето на дневник
+   * продължава.
+   *
+   * @param filePathString пътят към файла за отваряне.
+   * @param journaling дали да се води дневник с промените.
+   */
+  public void openFile(String filePathString, boolean journaling) {
+    openFile(filePathString, journaling, false);
+  }
+  /**
+   * Отваря файл по зададен път в JSON или двоичен формат. Двоичният формат се избира с флаг или
+   * по разширението на файла.
+   *
+   * @param filePathString пътят към файла за отваряне.
+   * @param journaling дали да се води дневник с промените.
+   * @param binary дали файлът е в двоичен формат.
+   */
+  public void openFile(String filePathString, boolean journaling, boolean binary) {
+    openFile(filePathString, journaling, binary, false);
+  }
+  /**
+   * Отваря файл по зададен път. В режим на отложено зареждане от JSON файла се прочитат само
+   * основните данни на студентите, а курсовете им се прочитат при първото обръщение към тях.
+   *
+   * @param filePathString пътят към файла за отваряне.
+   * @param journaling дали да се води дневник с промените.
+   * @param binary дали файлът е в двоичен формат.
+   * @param lazy дали курсовете да се зареждат отложено; не се отнася за двоичния формат.
+   */
+  public void openFile(
+      String filePathString, boolean journaling, boolean binary, boolean lazy) {
+    openFile(filePathString, journaling, binary, lazy, null);
+  }
+  /**
+   * Отваря файл или регистър, разделен на шардове. Регистър се отваря, ако пътят е директория,
+   * манифест или е зададено разпределение на нов регистър.
+   *
+   * @param filePathString пътят към файла, директорията или манифеста.
+   * @param journaling дали да се води дневник с промените; не се поддържа при шардове.
+   * @param binary дали файлът (или шардовете на нов регистър) е в двоичен формат.
+   * @param lazy дали курсовете да се зареждат отложено; не се отнася за двоичния формат.
+   * @param shards разпределението на нов регистър - "program" или брой шардове; може да е null.
+   */
+  public void openFile(
+      String filePathString, boolean journaling, boolean binary, boolean lazy, String shards) {
+    openFile(filePathString, journaling, binary, lazy, shards, false);
+  }
+  /**
+   * Отваря файл или регистър, разделен на шардове, и по желание следи файла за промени от други
+   * процеси. При промяна файлът се прочита наново, но в хранилището се записват само новите и
+   * променените студенти. Докато файлът се следи, курсовете не се зареждат отложено.
+   *
+   * @param filePathString пътят към файла, директорията или манифеста.
+   * @param journaling дали да се води дневник с промените; не се поддържа при шардове.
+   * @param binary дали файлът (или шардовете на нов регистър) е в двоичен формат.
+   * @param lazy дали курсовете да се зареждат отложено; не се отнася за двоичния формат.
+   * @param shards разпределението на нов регистър - "program" или брой шардове; може да е null.
+   * @param watch дали да се следи файлът за промени; не се поддържа при шардове.
+   */
+  public synchronized void openFile(
+      String filePathString,
+      boolean journaling,
+      boolean binary,
+      boolean lazy,
+      String shards,
+      boolean watch) {
     Path filePath = Path.of(filePathString);
+    if (shards != null || ShardedRegistryFile.isSharded(filePath)) {
+      if (watch) {
+        out.println("Watching is not supported for sharded registries.");
+      }
+      openShards(filePath, journaling, binary, lazy, shards);
+      return;
+    }
     File file = filePath.toFile();
     if (!file.exists()) {
       try {
         if (!file.createNewFile()) {
-          System.out.println("Failed to create the file.");
+          out.println("Failed to create the file.");
           return;
         }
       } catch (IOException e) {
-        System.out.println("An error occurred while creating the file.");
+        out.println("An error occurred while creating the file.");
         e.printStackTrace();
         return;
       }
     }
 
+    RegistryFormat previousFormat = isFileOpen ? detachFromFormat() : null;
+    RegistryFormat format = formatFor(filePath, binary, lazy && !watch);
     try {
-      JsonNode jsonNode = objectMapper.readTree(file);
-      if (jsonNode instanceof ObjectNode) {
-        currentData = (ObjectNode) jsonNode;
-      } else {
-        currentData = objectMapper.createObjectNode(); // Create an empty ObjectNode
+      long started = System.nanoTime();
+      long checksum = watch ? RegistryWatcher.checksum(filePath) : 0;
+      currentData = format.read(filePath, studentRepository);
+      metrics.recordLoad(Files.size(filePath), System.nanoTime() - started);
+      currentFormat = format;
+      if (previousFormat != null) {
+        closeFormat(previousFormat);
       }
+      // Дневникът и следенето на предишния файл се затварят, иначе ресурсите им остават заети
+      closeWatcher();
+      if (watch) {
+        // Отпечатъците са на данните във файла, преди да бъдат приложени записите от дневника
+        knownChecksum = checksum;
+        diskFingerprints = fingerprints(studentRepository.findAll());
+      }
+      closeJournal();
+      openJournal(filePath, journaling);
       currentFilePath = filePath;
       isFileOpen = true;
-      // Read student data from the file and save it in the repository
-      JsonNode studentsJson = currentData.get("students");
-      if (studentsJson != null && studentsJson.isArray()) {
-        ArrayNode studentsArray = (ArrayNode) studentsJson;
-        for (JsonNode studentNode : studentsArray) {
-          Student student = objectMapper.treeToValue(studentNode, Student.class);
-          studentRepository.save(student);
-        }
+      if (watch) {
+        watcher = new RegistryWatcher(filePath, this::reload);
       }
 
-      System.out.println("File opened successfully.");
+      confirm("File opened successfully.");
+    } catch (IOException e) {
+      out.println("An error occurred while reading the file.");
+      e.printStackTrace();
+      closeFormat(format);
+    }
+  }
+  /**
+   * Отваря регистър, разделен на шардове. Шардовете се зареждат паралелно в собствено хранилище,
+   * което замества текущото до затварянето на регистъра.
+   */
+  private void openShards(
+      Path filePath, boolean journaling, boolean binary, boolean lazy, String shards) {
+    if (isFileOpen) {
+      out.println("Close the current file before opening a sharded registry.");
+      return;
+    }
+    if (journaling) {
+      out.println("Journaling is not supported for sharded registries.");
+    }
+    ShardedRegistryFile format =
+        new ShardedRegistryFile(jsonCodec, path -> formatFor(path, false, lazy));
+    try {
+      long started = System.nanoTime();
+      StudentRepository repository =
+          format.open(filePath, shards, binary, defaultRepository::createEmpty);
+      currentData = format.read(filePath, repository);
+      metrics.recordLoad(ShardedRegistryFile.size(filePath), System.nanoTime() - started);
+      useRepository(repository);
+      currentFormat = format;
+      currentFilePath = filePath;
+      isFileOpen = true;
+
+      confirm("File opened successfully.");
     } catch (IOException e) {
-      System.out.println("An error occurred while reading the file.");
+      out.println("An error occurred while reading the file.");
       e.printStackTrace();
+      closeFormat(format);
+    }
+  }
+  /**
+   * Избира формата на файл по флаг или по разширението му.
+   *
+   * @param filePath пътят до файла.
+   * @param binary дали е изрично поискан двоичен формат.
+   * @param lazy дали курсовете да се зареждат отложено.
+   * @return форматът на файла.
+   */
+  private RegistryFormat formatFor(Path filePath, boolean binary, boolean lazy) {
+    if (binary || filePath.getFileName().toString().endsWith(BinaryRegistryFile.EXTENSION)) {
+      return new BinaryRegistryFile(jsonCodec);
+    }
+    return new JsonRegistryFile(jsonCodec, lazy);
+  }
+  /**
+   * Прочита наново текущия файл, след като е променен от друг процес, и прилага в хранилището
+   * само разликите спрямо предишното му съдържание (виж
+   * {@link StudentRepository#applyChanges(Iterable, Map)}). Студентите, променени във файла,
+   * заместват тези в хранилището, включително непазените промени по тях, а непазените промени по
+   * останалите студенти се запазват. Собствените записи на програмата се разпознават по
+   * контролната сума на файла и се пропускат.
+   */
+  private synchronized void reload() {
+    if (!isFileOpen || watcher == null) {
+      return;
+    }
+    RegistryFormat format =
+        currentFormat instanceof BinaryRegistryFile
+            ? new BinaryRegistryFile(jsonCodec)
+            : new JsonRegistryFile(jsonCodec);
+    try {
+      long checksum = RegistryWatcher.checksum(currentFilePath);
+      if (checksum == knownChecksum) {
+        return;
+      }
+      long started = System.nanoTime();
+      StudentRepository changedVersion = new IndexedStudentRepository();
+      ObjectNode data = format.read(currentFilePath, changedVersion);
+      Collection<Student> changedStudents = changedVersion.findAll();
+      StudentRepository.Changes changes =
+          studentRepository.applyChanges(changedStudents, diskFingerprints);
+      metrics.recordLoad(Files.size(currentFilePath), System.nanoTime() - started);
+      if (currentData.has(Journal.CHECKPOINT_FIELD)) {
+        data.set(Journal.CHECKPOINT_FIELD, currentData.get(Journal.CHECKPOINT_FIELD));
+      }
+      currentData = data;
+      // Непроменените студенти вече са свързани със записите си в новата версия на файла
+      closeFormat(currentFormat);
+      currentFormat = format;
+      knownChecksum = checksum;
+      diskFingerprints = fingerprints(changedStudents);
+      confirm(
+          "File changed: updated "
+              + changes.changed()
+              + ", added "
+              + changes.added()
+              + " students"
+              + (changes.missing() > 0
+                  ? "; kept " + changes.missing() + " students missing from the file."
+                  : "."));
+    } catch (IOException | RuntimeException e) {
+      // Файлът може още да се записва или да е невалиден; следенето продължава и следващата
+      // промяна ще предизвика ново четене
+      out.println("An error occurred while reloading the file.");
+      closeFormat(format);
+    }
+  }
+  /** Спира следенето на текущия файл, ако се следи. */
+  private void closeWatcher() {
+    if (watcher == null) {
+      return;
+    }
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      out.println("An error occurred while closing the file watcher.");
+    }
+    watcher = null;
+    diskFingerprints = null;
+  }
+
+  /**
+   * Изчислява отпечатъците на студенти по факултетен номер.
+   *
+   * @param students студентите
+   * @return отпечатъците
+   */
+  private static Map<String, Long> fingerprints(Collection<Student> students) {
+    Map<String, Long> fingerprints = new HashMap<>(students.size() * 2);
+    for (Student student : students) {
+      fingerprints.put(student.getFacultyNumber(), student.fingerprint());
+    }
+    return fingerprints;
+  }
+  /**
+   * Отделя заредените студенти от записите им в текущия файл, преди да бъде отворен друг файл в
+   * същото хранилище. Отложено заредените курсове се прочитат, защото след отварянето на другия
+   * файл форматът на текущия се затваря.
+   *
+   * @return форматът на текущия файл
+   */
+  private RegistryFormat detachFromFormat() {
+    for (Student student : studentRepository.findAll()) {
+      if (student.getStoredRecord() != null) {
+        Lock lock = studentRepository.lockFor(student.getFacultyNumber());
+        lock.lock();
+        try {
+          student.detachStoredRecord();
+        } finally {
+          lock.unlock();
+        }
+      }
     }
+    return currentFormat;
+  }
+  /**
+   * Освобождава ресурсите на формат на файл.
+   *
+   * @param format форматът
+   */
+  private void closeFormat(RegistryFormat format) {
+    try {
+      format.close();
+    } catch (IOException e) {
+      out.println("An error occurred while closing the file.");
+    }
+  }
+  /**
+   * Прилага непогълнатите записи от дневника върху прочетените данни и, ако е нужно, отваря
+   * дневника за добавяне.
+   *
+   * @param filePath пътят до файла с данни.
+   * @param journaling дали да се води дневник с промените.
+   * @throws IOException при грешка при работа с дневника.
+   */
+  private void openJournal(Path filePath, boolean journaling) throws IOException {
+    Path journalPath = Journal.pathFor(filePath);
+    Journal.Contents contents = Journal.read(journalPath);
+    long checkpoint = currentData.path(Journal.CHECKPOINT_FIELD).asLong(0);
+    long lastSequence = checkpoint;
+    int replayed = 0;
+    StudentService replayService =
+        new StudentService(studentRepository, new PrintStream(OutputStream.nullOutputStream()));
+    for (Journal.Entry entry : contents.entries()) {
+      if (entry.sequence() > checkpoint) {
+        replayService.replay(entry);
+        replayed++;
+      }
+      lastSequence = Math.max(lastSequence, entry.sequence());
+    }
+    if (replayed > 0) {
+      confirm("Replayed " + replayed + " journal entries.");
+    }
+
+    if (journaling || Files.exists(journalPath)) {
+      journal = Journal.open(journalPath, contents.validLength(), lastSequence);
+      studentService.setJournal(journal);
+    }
+  }
+  /** Затваря дневника с промените, ако има отворен такъв. */
+  private void closeJournal() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      out.println("An error occurred while closing the journal.");
+    }
+    journal = null;
+    studentService.setJournal(null);
   }
   /** Затваря текущо отворения файл, ако има такъв. */
-  public void closeFile() {
+  public synchronized void closeFile() {
     if (!isFileOpen) {
-      System.out.println("No file is currently open.");
+      out.println("No file is currently open.");
       return;
     }
 
+    closeWatcher();
+    closeJournal();
     currentFilePath = null;
     currentData = null;
     isFileOpen = false;
-    objectMapper = new ObjectMapper();
-    studentRepository = new StudentRepository();
-    System.out.println("File closed successfully");
+    studentRepository.clear();
+    if (studentRepository != defaultRepository) {
+      useRepository(defaultRepository);
+    }
+    closeFormat(currentFormat);
+    currentFormat = null;
+    confirm("File closed successfully");
   }
-  /** Запазва текущите данни във файла. Ако няма отворен файл, този метод не прави нищо. */
-  public void save() {
+  /**
+   * Запазва текущите данни във файла. Ако няма отворен файл, този метод не прави нищо.
+   *
+   * @return true, ако данните са запазени
+   */
+  public synchronized boolean save() {
     if (!isFileOpen) {
-      System.out.println("No file is currently open.");
-      return;
+      out.println("No file is currently open.");
+      return false;
     }
 
-    try {
-      // Convert student data to JSON
-      ObjectNode studentData = objectMapper.createObjectNode();
-      studentData.put("students", studentRepository.getStudentsJson());
-
-      // Merge student data with current data
-      if (currentData != null) {
-        currentData.set("students", studentData.get("students"));
-      } else {
-        currentData = studentData;
+    if (journal != null) {
+      currentData.put(Journal.CHECKPOINT_FIELD, journal.getLastSequence());
+    }
+    if (!writeFile(currentFormat, currentFilePath)) {
+      return false;
+    }
+    if (journal != null) {
+      try {
+        journal.reset();
+      } catch (IOException e) {
+        out.println("An error occurred while resetting the journal.");
       }
+    }
+    return true;
+  }
 
-      // Save the merged data to the file
-      objectMapper.writeValue(currentFilePath.toFile(), currentData);
-      System.out.println("Data saved successfully.");
-    } catch (IOException e) {
-      System.out.println("An error occurred while saving the file.");
+  /**
+   * Включва всички промени от дневника в нова снимка на данните и изпразва дневника. Ако за
+   * текущия файл не се води дневник, този метод не прави нищо.
+   */
+  public void compact() {
+    if (!isFileOpen) {
+      out.println("No file is currently open.");
+      return;
+    }
+    if (journal == null) {
+      out.println("Journaling is not enabled for this file.");
+      return;
     }
+
+    save();
   }
 
   /**
@@ -131,245 +574,521 @@ public class CommandLineRunner {
    * @param newFilePathString пътят до файла, където данните трябва да бъдат запазени
    */
   public void saveAs(String newFilePathString) {
+    saveAs(newFilePathString, false);
+  }
+
+  /**
+   * Запазва текущите данни в нов файл в JSON или двоичен формат. Така файл може да се преобразува
+   * от единия формат в другия.
+   *
+   * @param newFilePathString пътят до файла, където данните трябва да бъдат запазени
+   * @param binary дали да се запише в двоичен формат; иначе форматът се избира по разширението
+   */
+  public void saveAs(String newFilePathString, boolean binary) {
+    saveAs(newFilePathString, binary, null);
+  }
+
+  /**
+   * Запазва текущите данни в нов файл или в регистър, разделен на шардове. Регистър се записва,
+   * ако е зададено разпределение или пътят е директория; така един файл може да се раздели на
+   * шардове, а шардовете - да се слеят в един файл.
+   *
+   * @param newFilePathString пътят до файла или директорията
+   * @param binary дали да се запише в двоичен формат; иначе форматът се избира по разширението
+   * @param shards разпределението - "program" или брой шардове; може да е null
+   */
+  public synchronized void saveAs(String newFilePathString, boolean binary, String shards) {
     if (!isFileOpen) {
-      System.out.println("No file is currently open.");
+      out.println("No file is currently open.");
       return;
     }
 
     Path newFilePath = Path.of(newFilePathString);
+    if (shards == null && !ShardedRegistryFile.isSharded(newFilePath)) {
+      writeFile(formatFor(newFilePath, binary, false), newFilePath);
+      return;
+    }
+    if (shards == null && currentFormat instanceof ShardedRegistryFile current) {
+      // Регистърът се копира със същото разпределение
+      writeFile(current, newFilePath);
+      return;
+    }
+    ShardedRegistryFile format =
+        new ShardedRegistryFile(jsonCodec, path -> formatFor(path, false, false));
+    format.setLayout(shards != null ? shards : "program", binary);
+    writeFile(format, newFilePath);
+  }
+
+  /**
+   * Записва студентите от хранилището и останалите данни в зададения файл.
+   *
+   * @param format форматът на файла
+   * @param filePath пътят до файла
+   * @return true, ако записът е успешен
+   */
+  private boolean writeFile(RegistryFormat format, Path filePath) {
     try {
-      objectMapper.writeValue(newFilePath.toFile(), currentData);
+      long started = System.nanoTime();
+      Collection<Student> students = studentRepository.findAll();
+      format.write(filePath, currentData, students);
+      long size =
+          format instanceof ShardedRegistryFile
+              ? ShardedRegistryFile.size(filePath)
+              : Files.size(filePath);
+      metrics.recordSave(size, System.nanoTime() - started);
+      if (watcher != null && filePath.equals(currentFilePath)) {
+        knownChecksum = RegistryWatcher.checksum(filePath);
+        diskFingerprints = fingerprints(students);
+      }
+      confirm("Data saved successfully.");
+      return true;
     } catch (IOException e) {
-      System.out.println("An error occurred while saving the file.");
+      out.println("An error occurred while saving the file.");
+      return false;
     }
   }
+  /**
+   * Добавя оценки от CSV файл и извежда обобщение и отхвърлените редове.
+   *
+   * @param csvPathString пътят до CSV файла
+   * @return true, ако файлът е прочетен и няма отхвърлени редове
+   */
+  public boolean importGrades(String csvPathString) {
+    GradeImportResult result;
+    try (BufferedReader reader = Files.newBufferedReader(Path.of(csvPathString))) {
+      result = studentService.importGradesCsv(reader);
+    } catch (IOException e) {
+      out.println("An error occurred while reading the file.");
+      return false;
+    }
+    for (GradeImportResult.Rejection rejection : result.rejected()) {
+      out.println("Row " + rejection.row() + ": " + rejection.reason());
+    }
+    out.println(
+        "Imported "
+            + result.accepted().size()
+            + " grades, rejected "
+            + result.rejected().size()
+            + " rows.");
+    return result.rejected().isEmpty();
+  }
   /** Отпечатва помощник за менюто, изброяващо всички налични команди и техния начин на употреба. */
   public void help() {
-    System.out.println("Supported commands:");
-    System.out.println("open <file_path> - Opens the file at <file_path>.");
-    System.out.println("close - Closes the currently opened file.");
-    System.out.println("save - Saves the changes to the currently opened file.");
-    System.out.println(
-        "saveas <new_file_path> - Saves the changes to a new file at <new_file_path>.");
-    System.out.println("help - Shows this help message.");
-    System.out.println("exit - Exits the program.");
-    System.out.println("enroll <name> <program> <group> <facultyNumber> - Enroll a student.");
-    System.out.println("advance <facultyNumber> - Advance a student to the next year.");
-    System.out.println("change <facultyNumber> <option> <value> - Change student details.");
-    System.out.println("graduate <facultyNumber> - Mark a student as graduated.");
-    System.out.println("interrupt <facultyNumber> - Mark a student as dropped out.");
-    System.out.println("resume <facultyNumber> - Reinstate a dropped-out student.");
-    System.out.println("print <facultyNumber> - Print student details.");
-    System.out.println("printall <program> <year> - Print all students in a program and year.");
-    System.out.println(
+    out.println("Supported commands:");
+    out.println("open <file_path> - Opens the file at <file_path>.");
+    out.println(
+        "open <file_path> --journal - Opens the file and journals every change next to it.");
+    out.println(
+        "open <file_path> --binary - Opens a binary registry file (default for *.bin files).");
+    out.println(
+        "open <file_path> --lazy - Opens a JSON file and reads courses only when first needed.");
+    out.println(
+        "open <file_path> --watch - Opens the file and applies changes made to it by other"
+            + " programs.");
+    out.println(
+        "open <file_path>.gz|.zb - Opens a gzip or block-compressed JSON file; save and saveas"
+            + " compress the same way.");
+    out.println(
+        "open <directory> [--shards program|<count>] [--binary] - Opens a registry split into"
+            + " shard files; --shards creates a new one.");
+    out.println("close - Closes the currently opened file.");
+    out.println("save - Saves the changes to the currently opened file.");
+    out.println(
+        "saveas <new_file_path> [--binary] - Saves the changes to a new file at <new_file_path>.");
+    out.println(
+        "saveas <directory> --shards program|<count> [--binary] - Splits the data into shard"
+            + " files.");
+    out.println(
+        "compact - Folds the journal into the file and truncates the journal.");
+    out.println("help - Shows this help message.");
+    out.println("stats - Shows command latencies, load/save volumes and index hit ratios.");
+    out.println("exit - Exits the program.");
+    out.println("enroll <name> <program> <group> <facultyNumber> - Enroll a student.");
+    out.println("advance <facultyNumber> - Advance a student to the next year.");
+    out.println("change <facultyNumber> <option> <value> - Change student details.");
+    out.println("graduate <facultyNumber> - Mark a student as graduated.");
+    out.println("interrupt <facultyNumber> - Mark a student as dropped out.");
+    out.println("resume <facultyNumber> - Reinstate a dropped-out student.");
+    out.println("print <facultyNumber> - Print student details.");
+    out.println("printall <program> <year> - Print all students in a program and year.");
+    out.println(
         "enrollin <facultyNumber> <disciplineName> - Enroll a student in a discipline.");
-    System.out.println(
+    out.println(
         "addgrade <facultyNumber> <disciplineName> <grade> - Add a grade for a student in a discipline.");
-    System.out.println("protocol <disciplineName> - Generate a protocol for a discipline.");
-    System.out.println("report <facultyNumber> - Generate a report for a student.");
+    out.println(
+        "importgrades <csv_file> - Add grades from a facultyNumber,discipline,grade CSV file.");
+    out.println("protocol <disciplineName> - Generate a protocol for a discipline.");
+    out.println("protocolall - Generate protocols for all disciplines in one pass.");
+    out.println("report <facultyNumber> - Generate a report for a student.");
+    out.println(
+        "analytics [topN] - Print cohort statistics and the top N students (default 10).");
   }
 
   public void exit() {
+    closeJournal();
+    out.flush();
     System.exit(0);
   }
   /** Основният цикъл на програмата, чакащ за вход от потребителя и изпълняващ команди. */
   public void run() {
     Scanner scanner = new Scanner(System.in);
-    StudentService studentService = new StudentService(studentRepository);
 
     while (true) {
-      System.out.print("> ");
-      String command = scanner.nextLine().trim();
-      String[] parts = command.split(" ", 2);
-      if (parts.length > 0 && !parts[0].isEmpty()) {
-        String cmd = parts[0];
-        String[] cmdArgs = parts.length > 1 ? parts[1].split(" ") : new String[0];
+      out.print("> ");
+      out.flush();
+      execute(scanner.nextLine());
+    }
+  }
+
+  /**
+   * Изпълнява команди от файл без взаимодействие с потребителя. Файлът се чете буферирано, а
+   * изходът се събира в буфер и се извежда на части. Празните редове и редовете, започващи с #,
+   * се пропускат. Грешка в един ред не прекъсва изпълнението на останалите. За грешка се смята
+   * и отхвърлена команда (виж {@link #execute(String)}), както и неуспешен запис накрая.
+   *
+   * @param scriptPath пътят до файла с команди
+   * @param saveAtEnd дали накрая да се запази отвореният файл
+   * @return броят на редовете, завършили с грешка или отхвърлени
+   * @throws IOException при грешка при четене на файла с команди
+   */
+  public int runBatch(Path scriptPath, boolean saveAtEnd) throws IOException {
+    int failed = 0;
+    int lineNumber = 0;
+    try (BufferedReader reader = Files.newBufferedReader(scriptPath)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank() || line.trim().startsWith("#")) {
+          continue;
+        }
+        try {
+          if (!execute(line)) {
+            failed++;
+          }
+        } catch (RuntimeException e) {
+          failed++;
+          out.println("Line " + lineNumber + ": " + e.getMessage());
+        }
+      }
+    }
+    if (saveAtEnd && !save()) {
+      failed++;
+    }
+    finish(false);
+    return failed;
+  }
+
+  /**
+   * Завършва работата с отворения файл, без да спира програмата: по желание го запазва и
+   * затваря дневника.
+   *
+   * @param saveAtEnd дали да се запази отвореният файл
+   */
+  public void finish(boolean saveAtEnd) {
+    if (saveAtEnd) {
+      save();
+    }
+    closeWatcher();
+    closeJournal();
+    out.flush();
+  }
+
+  /**
+   * Изпълнява една команда.
+   *
+   * @param commandLine редът с командата и аргументите ѝ
+   * @return false, ако командата е непозната, параметрите ѝ са невалидни или е отхвърлена
+   */
+  public boolean execute(String commandLine) {
+    String command = commandLine.trim();
+    String[] parts = command.split(" ", 2);
+    if (parts.length > 0 && !parts[0].isEmpty()) {
+      String cmd = parts[0];
+      String[] cmdArgs = parts.length > 1 ? parts[1].split(" ") : new String[0];
 
+      // Времето се измерва за всяка разпозната команда, включително неуспешните
+      long started = System.nanoTime();
+      boolean known = true;
+      boolean failed = true;
+      boolean succeeded = true;
+      try {
         switch (cmd) {
           case "open" -> {
             if (cmdArgs.length < 1) {
-              System.out.println("File path is required.");
+              out.println("File path is required.");
+              succeeded = false;
             } else {
-              openFile(cmdArgs[0]);
+              List<String> flags = Arrays.asList(cmdArgs).subList(1, cmdArgs.length);
+              openFile(
+                cmdArgs[0],
+                flags.contains("--journal"),
+                flags.contains("--binary"),
+                flags.contains("--lazy"),
+                flagValue(flags, "--shards"),
+                flags.contains("--watch"));
             }
           }
           case "close" -> closeFile();
-          case "save" -> save();
+          case "save" -> succeeded = save();
+          case "compact" -> compact();
           case "saveas" -> {
             if (cmdArgs.length < 1) {
-              System.out.println("New file path is required.");
+              out.println("New file path is required.");
+              succeeded = false;
             } else {
-              saveAs(cmdArgs[0]);
+              List<String> flags = Arrays.asList(cmdArgs).subList(1, cmdArgs.length);
+              saveAs(cmdArgs[0], flags.contains("--binary"), flagValue(flags, "--shards"));
             }
           }
           case "help" -> help();
+          case "stats" -> metrics.print(out);
           case "exit" -> exit();
           case "enroll" -> {
             if (isFileOpen) {
               if (cmdArgs.length < 4) {
-                System.out.println(
+                out.println(
                     "Insufficient parameters. Usage: enroll <name> <program> <group> <facultyNumber>");
+                succeeded = false;
               } else {
                 String name = cmdArgs[0];
                 Program program = Program.valueOf(cmdArgs[1].toUpperCase());
                 int group = Integer.parseInt(cmdArgs[2]);
                 String facultyNumber = cmdArgs[3];
-                studentService.enrollStudent(name, program, group, facultyNumber);
-                System.out.println("Student enrolled successfully.");
+                succeeded = studentService.enrollStudent(name, program, group, facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "advance" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
-                studentService.advance(facultyNumber);
+                succeeded = studentService.advance(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "change" -> {
             if (isFileOpen) {
               if (cmdArgs.length < 1) {
-                System.out.println(
+                out.println(
                     "Insufficient parameters. Usage: change <facultyNumber> <option> <value>");
+                succeeded = false;
               } else {
                 if (cmdArgs.length < 3) {
-                  System.out.println(
+                  out.println(
                       "Insufficient parameters. Usage: change <facultyNumber> <option> <value>");
+                  succeeded = false;
                 } else {
                   String facultyNumber = cmdArgs[0];
                   String option = cmdArgs[1];
                   String value = cmdArgs[2];
-                  studentService.change(facultyNumber, option, value);
+                  succeeded = studentService.change(facultyNumber, option, value);
                 }
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "graduate" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
-                studentService.graduate(facultyNumber);
+                succeeded = studentService.graduate(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "interrupt" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
-                studentService.interrupt(facultyNumber);
+                succeeded = studentService.interrupt(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "resume" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
-                studentService.resume(facultyNumber);
+                succeeded = studentService.resume(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "print" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
                 studentService.print(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "printall" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Insufficient parameters. Usage: printall <program> <year>");
+                out.println("Insufficient parameters. Usage: printall <program> <year>");
+                succeeded = false;
               } else {
                 String programName = cmdArgs[0];
                 int year = Integer.parseInt(cmdArgs[1]);
                 studentService.printAll(programName, year);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "enrollin" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println(
+                out.println(
                     "Insufficient parameters. Usage: enrollin <facultyNumber> <disciplineName>");
+                succeeded = false;
               } else {
                 String facultyNumber = cmdArgs[0];
                 String disciplineName = cmdArgs[1];
-                studentService.enrollIn(facultyNumber, disciplineName);
+                succeeded = studentService.enrollIn(facultyNumber, disciplineName);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "addgrade" -> {
             if (isFileOpen) {
               if (cmdArgs.length < 3) {
-                System.out.println(
+                out.println(
                     "Insufficient parameters. Usage: addgrade <facultyNumber> <disciplineName> <grade>");
+                succeeded = false;
               } else {
                 String facultyNumber = cmdArgs[0];
                 String disciplineName = cmdArgs[1];
                 double grade = Double.parseDouble(cmdArgs[2]);
-                studentService.addGrade(facultyNumber, disciplineName, grade);
+                succeeded = studentService.addGrade(facultyNumber, disciplineName, grade);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
+            }
+          }
+          case "importgrades" -> {
+            if (isFileOpen) {
+              if (cmdArgs.length < 1) {
+                out.println("Insufficient parameters. Usage: importgrades <csv_file>");
+                succeeded = false;
+              } else {
+                succeeded = importGrades(cmdArgs[0]);
+              }
+            } else {
+              out.println("No file is currently open.");
+              succeeded = false;
+            }
+          }
+          case "analytics" -> {
+            if (isFileOpen) {
+              int topCount = cmdArgs.length > 0 ? Integer.parseInt(cmdArgs[0]) : 10;
+              analyticsService.printStatistics(topCount);
+            } else {
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "protocol" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Discipline name is required.");
+                out.println("Discipline name is required.");
+                succeeded = false;
               } else {
                 String disciplineName = parts[1];
                 studentService.protocol(disciplineName);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
+            }
+          }
+          case "protocolall" -> {
+            if (isFileOpen) {
+              studentService.protocolAll();
+            } else {
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
           case "report" -> {
             if (isFileOpen) {
               if (parts.length < 2) {
-                System.out.println("Faculty number is required.");
+                out.println("Faculty number is required.");
+                succeeded = false;
               } else {
                 String facultyNumber = parts[1];
                 studentService.report(facultyNumber);
               }
             } else {
-              System.out.println("No file is currently open.");
+              out.println("No file is currently open.");
+              succeeded = false;
             }
           }
-          default -> System.out.println("Unknown command.");
+          default -> {
+            out.println("Unknown command.");
+            known = false;
+            succeeded = false;
+          }
+        }
+        failed = false;
+      } finally {
+        if (known) {
+          metrics.recordCommand(cmd, System.nanoTime() - started, failed);
         }
       }
+      return succeeded;
+    }
+    return true;
+  }
+
+  /**
+   * Връща стойността след даден флаг.
+   *
+   * @param flags флаговете на командата
+   * @param name името на флага
+   * @return стойността, празен низ, ако флагът е последен, или null, ако флагът липсва
+   */
+  private static String flagValue(List<String> flags, String name) {
+    int index = flags.indexOf(name);
+    if (index < 0) {
+      return null;
     }
+    return index + 1 < flags.size() ? flags.get(index + 1) : "";
   }
 }
@@ -0,0 +1,72 @@
+package bg.tuvarna.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Брой изпълнения, грешки и хистограма на продължителността на една команда. */
+public class CommandMetrics implements CommandMetricsMXBean {
+  private static final double NANOS_PER_MICRO = 1_000.0;
+
+  private final String name;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder failures = new LongAdder();
+
+  CommandMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Отчита едно изпълнение на командата.
+   *
+   * @param nanos продължителността в наносекунди
+   * @param failed дали командата е завършила с изключение
+   */
+  public void record(long nanos, boolean failed) {
+    latency.record(nanos);
+    if (failed) {
+      failures.increment();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return latency.getMeanNanos() / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP50Micros() {
+    return latency.getValueAtPercentile(50) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP90Micros() {
+    return latency.getValueAtPercentile(90) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return latency.getValueAtPercentile(99) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return latency.getMaxNanos() / NANOS_PER_MICRO;
+  }
+}
@@ -0,0 +1,18 @@
+package bg.tuvarna.metrics;
+
+/** JMX изглед на метриките за една команда. Времената са в микросекунди. */
+public interface CommandMetricsMXBean {
+  long getCount();
+
+  long getFailures();
+
+  double getMeanMicros();
+
+  double getP50Micros();
+
+  double getP90Micros();
+
+  double getP99Micros();
+
+  double getMaxMicros();
+}
@@ -0,0 +1,37 @@
+package bg.tuvarna.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Брои търсенията в индекс и колко от тях са намерили резултат. */
+public class HitRatio {
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+
+  /**
+   * Отчита едно търсене.
+   *
+   * @param hit дали търсенето е намерило резултат
+   */
+  public void record(boolean hit) {
+    lookups.increment();
+    if (hit) {
+      hits.increment();
+    }
+  }
+
+  public long getLookups() {
+    return lookups.sum();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return делът на успешните търсения между 0 и 1 или 0, ако още няма търсения
+   */
+  public double getRatio() {
+    long n = lookups.sum();
+    return n == 0 ? 0 : (double) hits.sum() / n;
+  }
+}
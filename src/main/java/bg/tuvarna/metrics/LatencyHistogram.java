@@ -0,0 +1,100 @@
+package bg.tuvarna.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Хистограма на продължителности в наносекунди с логаритмично-линейни кофи, подобно на
+ * HdrHistogram. Всеки интервал [2^e, 2^(e+1)) е разделен на 8 равни кофи, така че
+ * относителната грешка на перцентилите е под 12.5%, а хистограмата заема фиксирани 488 брояча
+ * независимо от броя на записите.
+ *
+ * <p>Записът не заделя памет и не заключва, затова може да се вика от много нишки едновременно.
+ */
+public class LatencyHistogram {
+  /** Брой битове след най-старшия, които определят кофата. */
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = bucketOf(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  /** Връща най-голямата стойност, попадаща в дадена кофа. */
+  private static long upperBoundOf(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1));
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  /**
+   * Записва една продължителност.
+   *
+   * @param nanos продължителността в наносекунди; отрицателните стойности се броят като 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    buckets.incrementAndGet(bucketOf(value));
+    count.increment();
+    total.add(value);
+    max.accumulate(value);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotalNanos() {
+    return total.sum();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  public double getMeanNanos() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) total.sum() / n;
+  }
+
+  /**
+   * Връща приблизителна стойност на даден перцентил - горната граница на кофата, в която попада.
+   *
+   * @param percentile перцентилът между 0 и 100
+   * @return стойността в наносекунди или 0, ако няма записи
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long n = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = buckets.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
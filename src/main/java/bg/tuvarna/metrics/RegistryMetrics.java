@@ -0,0 +1,242 @@
+package bg.tuvarna.metrics;
+
+import bg.tuvarna.repositories.StudentRepository;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Събира метриките за работата с регистъра: брой и продължителност на всяка команда, обем и
+ * продължителност на зарежданията и записите, размер на хранилището и дял на успешните търсения
+ * в индексите. Метриките се извеждат с командата stats и се публикуват като JMX MBeans, така че
+ * могат да се наблюдават с jconsole без външен сървър.
+ */
+public class RegistryMetrics implements RegistryMetricsMXBean {
+  /** Домейнът на JMX имената. */
+  public static final String DOMAIN = "bg.tuvarna";
+
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  private volatile StudentRepository studentRepository;
+  private final Map<String, CommandMetrics> commands = new ConcurrentSkipListMap<>();
+  private final LatencyHistogram loads = new LatencyHistogram();
+  private final LongAdder loadedBytes = new LongAdder();
+  private final LatencyHistogram saves = new LatencyHistogram();
+  private final LongAdder savedBytes = new LongAdder();
+  /** Сървърът, в който са публикувани MBeans, или null, ако не са публикувани. */
+  private volatile MBeanServer mbeanServer;
+
+  public RegistryMetrics(StudentRepository studentRepository) {
+    this.studentRepository = studentRepository;
+  }
+
+  /**
+   * Задава хранилището, чийто размер и търсения се отчитат, когато регистърът смени хранилището
+   * си, например при отваряне на регистър, разделен на шардове.
+   *
+   * @param studentRepository хранилището
+   */
+  public void setStudentRepository(StudentRepository studentRepository) {
+    this.studentRepository = studentRepository;
+  }
+
+  /**
+   * Връща метриките за дадена команда, като ги създава при първото ѝ изпълнение.
+   *
+   * @param name името на командата
+   * @return метриките за командата
+   */
+  public CommandMetrics command(String name) {
+    CommandMetrics metrics = commands.get(name);
+    if (metrics == null) {
+      metrics = commands.computeIfAbsent(name, CommandMetrics::new);
+      MBeanServer server = mbeanServer;
+      if (server != null) {
+        registerCommand(server, metrics);
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * Отчита изпълнение на команда.
+   *
+   * @param name името на командата
+   * @param nanos продължителността в наносекунди
+   * @param failed дали командата е завършила с изключение
+   */
+  public void recordCommand(String name, long nanos, boolean failed) {
+    command(name).record(nanos, failed);
+  }
+
+  /**
+   * Отчита зареждане на файл.
+   *
+   * @param bytes размерът на файла
+   * @param nanos продължителността в наносекунди
+   */
+  public void recordLoad(long bytes, long nanos) {
+    loads.record(nanos);
+    loadedBytes.add(bytes);
+  }
+
+  /**
+   * Отчита запис на файл.
+   *
+   * @param bytes размерът на записания файл
+   * @param nanos продължителността в наносекунди
+   */
+  public void recordSave(long bytes, long nanos) {
+    saves.record(nanos);
+    savedBytes.add(bytes);
+  }
+
+  /**
+   * Публикува метриките в платформения MBean сървър. Командите, изпълнени за първи път след
+   * това, се публикуват при първото си изпълнение.
+   *
+   * @throws JMException ако метриките не могат да бъдат публикувани, например защото в същата
+   *     JVM вече са публикувани метрики на друг регистър
+   */
+  public void registerMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, new ObjectName(DOMAIN + ":type=Registry"));
+    mbeanServer = server;
+    for (CommandMetrics metrics : commands.values()) {
+      registerCommand(server, metrics);
+    }
+  }
+
+  private static void registerCommand(MBeanServer server, CommandMetrics metrics) {
+    try {
+      ObjectName name =
+          new ObjectName(DOMAIN + ":type=Command,name=" + ObjectName.quote(metrics.getName()));
+      if (!server.isRegistered(name)) {
+        server.registerMBean(metrics, name);
+      }
+    } catch (JMException e) {
+      // Метриките остават достъпни чрез stats, дори ако не могат да се публикуват
+    }
+  }
+
+  /**
+   * Извежда всички метрики в четим вид.
+   *
+   * @param out потокът, в който се извеждат
+   */
+  public void print(PrintStream out) {
+    out.println("Repository size: " + getRepositorySize());
+    out.printf(
+        Locale.ROOT,
+        "Loads: %d, %d bytes, mean %.1f ms%n",
+        getLoadCount(),
+        getLoadedBytes(),
+        getMeanLoadMillis());
+    out.printf(
+        Locale.ROOT,
+        "Saves: %d, %d bytes, mean %.1f ms%n",
+        getSaveCount(),
+        getSavedBytes(),
+        getMeanSaveMillis());
+    out.printf(
+        Locale.ROOT,
+        "Faculty number lookups: %d, hit ratio %.1f%%%n",
+        getFacultyNumberLookups(),
+        getFacultyNumberHitRatio() * 100);
+    out.printf(
+        Locale.ROOT,
+        "Program/year lookups: %d, hit ratio %.1f%%%n",
+        getProgramYearLookups(),
+        getProgramYearHitRatio() * 100);
+    out.printf(
+        Locale.ROOT,
+        "%-14s %10s %8s %10s %10s %10s %10s %10s%n",
+        "Command",
+        "Count",
+        "Failed",
+        "Mean(us)",
+        "P50(us)",
+        "P90(us)",
+        "P99(us)",
+        "Max(us)");
+    for (CommandMetrics metrics : commands.values()) {
+      out.printf(
+          Locale.ROOT,
+          "%-14s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+          metrics.getName(),
+          metrics.getCount(),
+          metrics.getFailures(),
+          metrics.getMeanMicros(),
+          metrics.getP50Micros(),
+          metrics.getP90Micros(),
+          metrics.getP99Micros(),
+          metrics.getMaxMicros());
+    }
+  }
+
+  @Override
+  public int getRepositorySize() {
+    return studentRepository.count();
+  }
+
+  @Override
+  public long getLoadCount() {
+    return loads.getCount();
+  }
+
+  @Override
+  public long getLoadedBytes() {
+    return loadedBytes.sum();
+  }
+
+  @Override
+  public double getMeanLoadMillis() {
+    return loads.getMeanNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getSaveCount() {
+    return saves.getCount();
+  }
+
+  @Override
+  public long getSavedBytes() {
+    return savedBytes.sum();
+  }
+
+  @Override
+  public double getMeanSaveMillis() {
+    return saves.getMeanNanos() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getFacultyNumberLookups() {
+    return studentRepository.getFacultyNumberLookups().getLookups();
+  }
+
+  @Override
+  public double getFacultyNumberHitRatio() {
+    return studentRepository.getFacultyNumberLookups().getRatio();
+  }
+
+  @Override
+  public long getProgramYearLookups() {
+    return studentRepository.getProgramYearLookups().getLookups();
+  }
+
+  @Override
+  public double getProgramYearHitRatio() {
+    return studentRepository.getProgramYearLookups().getRatio();
+  }
+
+  @Override
+  public String[] getCommandNames() {
+    return commands.keySet().toArray(new String[0]);
+  }
+}
@@ -0,0 +1,28 @@
+package bg.tuvarna.metrics;
+
+/** JMX изглед на общите метрики за регистъра. Времената са в милисекунди. */
+public interface RegistryMetricsMXBean {
+  int getRepositorySize();
+
+  long getLoadCount();
+
+  long getLoadedBytes();
+
+  double getMeanLoadMillis();
+
+  long getSaveCount();
+
+  long getSavedBytes();
+
+  double getMeanSaveMillis();
+
+  long getFacultyNumberLookups();
+
+  double getFacultyNumberHitRatio();
+
+  long getProgramYearLookups();
+
+  double getProgramYearHitRatio();
+
+  String[] getCommandNames();
+}
@@ -23,4 +23,18 @@ public class Course {
     public boolean isSuccessfullyCompleted() {
         return isEnrolled && isGraded && grade >= 3.0;
     }
+
+    /**
+     * Създава копие на курса.
+     *
+     * @return копие на курса.
+     */
+    public Course copy() {
+        Course copy = new Course();
+        copy.setDiscipline(discipline);
+        copy.setGraded(isGraded);
+        copy.setGrade(grade);
+        copy.setEnrolled(isEnrolled);
+        return copy;
+    }
 }
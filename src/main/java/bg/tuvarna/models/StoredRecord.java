@@ -0,0 +1,17 @@
+package bg.tuvarna.models;
+
+import java.util.List;
+
+/**
+ * Записът, от който е прочетен студент, когато курсовете му се зареждат чак при първото
+ * използване. Докато студентът не бъде променен, записът описва точно неговото съдържание и може
+ * да бъде записан обратно без повторна сериализация.
+ */
+public interface StoredRecord {
+  /**
+   * Прочита курсовете на студента от записа.
+   *
+   * @return курсовете в реда, в който са записани
+   */
+  List<Course> readCourses();
+}
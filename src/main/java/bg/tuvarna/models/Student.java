@@ -1,13 +1,39 @@
 package bg.tuvarna.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Класът Student представя модела на студент в университет. Съдържа информация за името на
  * студента, факултетния номер, текущата година на обучение, специалността, в която се обучава
  * студентът, групата, в която се намира, статуса на студента, и списък от курсове, които студентът изучава.
+ *
+ * <p>Курсовете се пазят в EnumMap по дисциплина, затова търсенето на курс по дисциплина е с
+ * константна сложност, а един студент не може да бъде записан два пъти в една дисциплина. В JSON
+ * курсовете се представят като масива courseList.
+ *
+ * <p>Студентът поддържа и натрупани показатели - сума и брой на оценките от успешно завършените
+ * курсове и битови маски на завършените и незавършените дисциплини. Те се обновяват при всяка
+ * промяна на курсовете, затова оценки се поставят чрез {@link #gradeCourse(Discipline, double)},
+ * а не чрез директна промяна на обекта Course.
+ *
+ * <p>Студент, прочетен от JSON файл, пази връзка към записа си във файла ({@link StoredRecord}),
+ * така че докато не бъде променен, може да бъде записан обратно без сериализация. В режим на
+ * отложено зареждане курсовете се прочитат от записа едва при първото обръщение към тях.
+ * Връзката се премахва, когато студентът бъде записан в хранилището след промяна, защото тогава
+ * записът вече не отговаря на съдържанието му.
  */
 @Data
 public class Student {
@@ -17,5 +43,349 @@ public class Student {
   private Program program;
   private Integer group;
   private Status status;
-  private List<Course> courseList;
+
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private final Map<Discipline, Course> courses = new EnumMap<>(Discipline.class);
+
+  /**
+   * Сума на оценките от успешно завършените курсове в стотни. Пази се като цяло число, за да не
+   * се натрупва грешка от закръгляне при многократно добавяне и изваждане на оценки.
+   */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private long completedGradeSum;
+
+  /** Брой на успешно завършените курсове. */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private int completedCount;
+
+  /** Битова маска (по пореден номер на дисциплината) на успешно завършените курсове. */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private long completedMask;
+
+  /** Битова маска на курсовете, които още не са успешно завършени. */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private long incompleteMask;
+
+  /** Записът, от който са прочетени данните, или null. */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  private volatile StoredRecord storedRecord;
+
+  /** Дали курсовете са заредени; false само докато отложеното зареждане не е извършено. */
+  @JsonIgnore
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  private volatile boolean coursesLoaded = true;
+
+  /** Маски на задължителните дисциплини по година на обучение. */
+  private static final long[] MANDATORY_MASK_BY_YEAR = mandatoryMasks();
+  /** Мащаб на сумата на оценките: оценките се пазят с точност до стотни. */
+  private static final double GRADE_SCALE = 100;
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static long[] mandatoryMasks() {
+    int maxYear = 0;
+    for (Discipline discipline : Discipline.values()) {
+      maxYear = Math.max(maxYear, discipline.getYear());
+    }
+    long[] masks = new long[maxYear + 1];
+    for (Discipline discipline : Discipline.values()) {
+      if (discipline.getIsMandatory()) {
+        masks[discipline.getYear()] |= 1L << discipline.ordinal();
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * Връща курсовете на студента, подредени по дисциплина.
+   *
+   * @return изглед само за четене към курсовете.
+   */
+  @JsonIgnore
+  public Collection<Course> getCourses() {
+    ensureCourses();
+    return Collections.unmodifiableCollection(courses.values());
+  }
+
+  /**
+   * Търси курса на студента по дадена дисциплина.
+   *
+   * @param discipline дисциплината.
+   * @return курсът или null, ако студентът няма курс по тази дисциплина.
+   */
+  public Course getCourse(Discipline discipline) {
+    ensureCourses();
+    return courses.get(discipline);
+  }
+
+  /**
+   * Добавя курс на студента. Съществуващ курс по същата дисциплина се заменя.
+   *
+   * @param course курсът.
+   */
+  public void addCourse(Course course) {
+    ensureCourses();
+    putCourse(course);
+  }
+
+  private void putCourse(Course course) {
+    Course previous = courses.put(course.getDiscipline(), course);
+    if (previous != null) {
+      unaccount(previous);
+    }
+    account(course);
+  }
+
+  /**
+   * Поставя оценка по дисциплина, в която студентът има курс, и обновява показателите.
+   *
+   * @param discipline дисциплината.
+   * @param grade оценката.
+   */
+  public void gradeCourse(Discipline discipline, double grade) {
+    ensureCourses();
+    Course course = courses.get(discipline);
+    unaccount(course);
+    course.setGrade(grade);
+    course.setGraded(true);
+    account(course);
+  }
+
+  /**
+   * Проверява дали студентът е завършил успешно курс по дадена дисциплина.
+   *
+   * @param discipline дисциплината.
+   * @return true, ако курсът е успешно завършен.
+   */
+  public boolean hasCompleted(Discipline discipline) {
+    ensureCourses();
+    return (completedMask & (1L << discipline.ordinal())) != 0;
+  }
+
+  /**
+   * Проверява дали всички курсове на студента по задължителни дисциплини от дадена година са
+   * успешно завършени.
+   *
+   * @param year годината на обучение.
+   * @return true, ако няма незавършен курс по задължителна дисциплина от тази година.
+   */
+  public boolean hasCompletedMandatoryCoursesOfYear(int year) {
+    if (year < 0 || year >= MANDATORY_MASK_BY_YEAR.length) {
+      return true;
+    }
+    ensureCourses();
+    return (incompleteMask & MANDATORY_MASK_BY_YEAR[year]) == 0;
+  }
+
+  /**
+   * Проверява дали всички курсове на студента са успешно завършени.
+   *
+   * @return true, ако няма незавършен курс.
+   */
+  public boolean hasCompletedAllCourses() {
+    ensureCourses();
+    return incompleteMask == 0;
+  }
+
+  /**
+   * Връща средния успех от успешно завършените курсове.
+   *
+   * @return средният успех или 0, ако няма завършени курсове.
+   */
+  @JsonIgnore
+  public double getAverageGrade() {
+    ensureCourses();
+    return completedCount > 0 ? completedGradeSum / GRADE_SCALE / completedCount : 0;
+  }
+
+  private void account(Course course) {
+    long bit = 1L << course.getDiscipline().ordinal();
+    if (course.isSuccessfullyCompleted()) {
+      completedGradeSum += scaled(course.getGrade());
+      completedCount++;
+      completedMask |= bit;
+    } else {
+      incompleteMask |= bit;
+    }
+  }
+
+  private void unaccount(Course course) {
+    long bit = 1L << course.getDiscipline().ordinal();
+    if ((completedMask & bit) != 0) {
+      completedGradeSum -= scaled(course.getGrade());
+      completedCount--;
+    }
+    completedMask &= ~bit;
+    incompleteMask &= ~bit;
+  }
+
+  private static long scaled(double grade) {
+    return Math.round(grade * GRADE_SCALE);
+  }
+
+  /**
+   * Връща курсовете като списък. Използва се при сериализация в JSON.
+   *
+   * @return нов списък с курсовете.
+   */
+  public List<Course> getCourseList() {
+    ensureCourses();
+    return new ArrayList<>(courses.values());
+  }
+
+  /**
+   * Задава курсовете от списък. Използва се при десериализация от JSON. При повече от един курс
+   * по една дисциплина се запазва първият, а курсовете без дисциплина се пропускат.
+   *
+   * @param courseList списъкът с курсове; null се приема за празен списък.
+   */
+  public synchronized void setCourseList(List<Course> courseList) {
+    courses.clear();
+    completedGradeSum = 0;
+    completedCount = 0;
+    completedMask = 0;
+    incompleteMask = 0;
+    if (courseList != null) {
+      for (Course course : courseList) {
+        if (course.getDiscipline() != null && !courses.containsKey(course.getDiscipline())) {
+          putCourse(course);
+        }
+      }
+    }
+    coursesLoaded = true;
+  }
+
+  /**
+   * Свързва студента със записа, от който е прочетен.
+   *
+   * @param record записът на студента
+   * @param deferCourses дали курсовете да се прочетат от записа чак при първото обръщение към
+   *     тях; иначе се приема, че вече са заредени
+   */
+  public void attachStoredRecord(StoredRecord record, boolean deferCourses) {
+    storedRecord = record;
+    if (deferCourses) {
+      coursesLoaded = false;
+    }
+  }
+
+  /**
+   * Връща записа, от който е прочетен студентът, ако студентът не е променян след това.
+   *
+   * @return записът или null
+   */
+  @JsonIgnore
+  public StoredRecord getStoredRecord() {
+    return storedRecord;
+  }
+
+  /**
+   * Зарежда курсовете, ако е необходимо, и премахва връзката към записа. Извиква се, когато
+   * студентът е променен и записът вече не отговаря на съдържанието му.
+   */
+  public void detachStoredRecord() {
+    if (storedRecord != null) {
+      ensureCourses();
+      storedRecord = null;
+    }
+  }
+
+  /**
+   * Проверява дали курсовете на студента са заредени.
+   *
+   * @return false, ако курсовете ще бъдат прочетени от записа при първото обръщение към тях
+   */
+  @JsonIgnore
+  public boolean isCoursesLoaded() {
+    return coursesLoaded;
+  }
+
+  private void ensureCourses() {
+    if (!coursesLoaded) {
+      loadCourses();
+    }
+  }
+
+  private synchronized void loadCourses() {
+    if (!coursesLoaded) {
+      setCourseList(storedRecord.readCourses());
+    }
+  }
+
+  /**
+   * Създава дълбоко копие на студента, включително на курсовете.
+   *
+   * @return копие на студента.
+   */
+  public Student copy() {
+    Student copy = new Student();
+    copy.setName(name);
+    copy.setFacultyNumber(facultyNumber);
+    copy.setCurrentYear(currentYear);
+    copy.setProgram(program);
+    copy.setGroup(group);
+    copy.setStatus(status);
+    for (Course course : getCourses()) {
+      copy.addCourse(course.copy());
+    }
+    return copy;
+  }
+
+  /**
+   * Изчислява 64-битов отпечатък (FNV-1a) на данните, които се записват във файла, и на курсовете.
+   * Студенти с еднакви данни имат еднакви отпечатъци, затова отпечатъкът може да замести пазенето
+   * на копие, когато трябва да се провери дали данните са променени. Курсовете се зареждат, ако са
+   * отложени.
+   *
+   * @return отпечатъкът.
+   */
+  public long fingerprint() {
+    long hash = FNV_OFFSET;
+    hash = mix(hash, name);
+    hash = mix(hash, facultyNumber);
+    hash = mix(hash, currentYear == null ? Long.MIN_VALUE : currentYear);
+    hash = mix(hash, program == null ? -1 : program.ordinal());
+    hash = mix(hash, group == null ? Long.MIN_VALUE : group);
+    hash = mix(hash, status == null ? -1 : status.ordinal());
+    for (Course course : getCourseList()) {
+      hash = mix(hash, course.getDiscipline() == null ? -1 : course.getDiscipline().ordinal());
+      hash = mix(hash, Double.doubleToLongBits(course.getGrade()));
+      hash = mix(hash, (course.isGraded() ? 1 : 0) | (course.isEnrolled() ? 2 : 0));
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+      hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, String value) {
+    if (value == null) {
+      return mix(hash, -1);
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return mix(hash, value.length());
+  }
 }
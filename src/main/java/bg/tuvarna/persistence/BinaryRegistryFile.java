@@ -0,0 +1,198 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Класът BinaryRegistryFile пази студентите в компактен двоичен формат, който се чете през
+ * memory-mapped FileChannel без текстов анализ.
+ *
+ * <p>Структура на файла:
+ *
+ * <ul>
+ *   <li>заглавие: "STDB" и версия (short);
+ *   <li>останалите полета на най-горно ниво като JSON (int дължина и UTF-8 байтове);
+ *   <li>таблица с низове - имена и факултетни номера (int брой, всеки низ като int дължина и
+ *       UTF-8 байтове);
+ *   <li>студенти (int брой). За всеки: индекс на името и на факултетния номер в таблицата,
+ *       година, поредни номера на програмата и статуса, група и курсове. За всеки курс: пореден
+ *       номер на дисциплината, флагове (оценен, записан) и оценка (double).
+ * </ul>
+ *
+ * Липсващите стойности се записват като -1 (индекси и поредни номера) или Integer.MIN_VALUE
+ * (числа).
+ */
+public class BinaryRegistryFile implements RegistryFormat {
+  /** Разширението на двоичните файлове. */
+  public static final String EXTENSION = ".bin";
+
+  private static final byte[] MAGIC = {'S', 'T', 'D', 'B'};
+  private static final short VERSION = 1;
+  private static final int NO_VALUE = Integer.MIN_VALUE;
+  private static final int FLAG_GRADED = 1;
+  private static final int FLAG_ENROLLED = 2;
+
+  private final ObjectMapper objectMapper;
+
+  public BinaryRegistryFile(JsonCodec codec) {
+    this.objectMapper = codec.getObjectMapper();
+  }
+
+  @Override
+  public ObjectNode read(Path filePath, StudentRepository studentRepository) throws IOException {
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size == 0) {
+        return objectMapper.createObjectNode();
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Binary registry files larger than 2 GB are not supported.");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      return read(buffer, studentRepository);
+    }
+  }
+
+  private ObjectNode read(ByteBuffer buffer, StudentRepository studentRepository)
+      throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    buffer.get(magic);
+    if (!Arrays.equals(magic, MAGIC) || buffer.getShort() != VERSION) {
+      throw new IOException("Not a binary student registry file.");
+    }
+    ObjectNode otherFields = (ObjectNode) objectMapper.readTree(readString(buffer));
+
+    String[] strings = new String[buffer.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = readString(buffer);
+    }
+
+    Program[] programs = Program.values();
+    Status[] statuses = Status.values();
+    Discipline[] disciplines = Discipline.values();
+    int studentCount = buffer.getInt();
+    for (int i = 0; i < studentCount; i++) {
+      Student student = new Student();
+      student.setName(lookup(strings, buffer.getInt()));
+      student.setFacultyNumber(lookup(strings, buffer.getInt()));
+      student.setCurrentYear(readInteger(buffer));
+      student.setProgram(lookup(programs, buffer.get()));
+      student.setGroup(readInteger(buffer));
+      student.setStatus(lookup(statuses, buffer.get()));
+      int courseCount = buffer.getInt();
+      for (int j = 0; j < courseCount; j++) {
+        Course course = new Course();
+        course.setDiscipline(lookup(disciplines, buffer.get()));
+        byte flags = buffer.get();
+        course.setGraded((flags & FLAG_GRADED) != 0);
+        course.setEnrolled((flags & FLAG_ENROLLED) != 0);
+        course.setGrade(buffer.getDouble());
+        if (course.getDiscipline() != null) {
+          student.addCourse(course);
+        }
+      }
+      studentRepository.save(student);
+    }
+    return otherFields;
+  }
+
+  @Override
+  public void write(Path filePath, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException {
+    Map<String, Integer> stringTable = new LinkedHashMap<>();
+    int studentCount = 0;
+    for (Student student : students) {
+      intern(stringTable, student.getName());
+      intern(stringTable, student.getFacultyNumber());
+      studentCount++;
+    }
+    ObjectNode fields = otherFields != null ? otherFields : objectMapper.createObjectNode();
+    byte[] fieldsJson = objectMapper.writeValueAsBytes(fields);
+    int count = studentCount;
+
+    RegistryFiles.writeAtomically(
+        filePath,
+        out -> {
+          DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+          data.write(MAGIC);
+          data.writeShort(VERSION);
+          data.writeInt(fieldsJson.length);
+          data.write(fieldsJson);
+          data.writeInt(stringTable.size());
+          for (String value : stringTable.keySet()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+          }
+          data.writeInt(count);
+          for (Student student : students) {
+            writeStudent(data, student, stringTable);
+          }
+          data.flush();
+        });
+  }
+
+  private static void writeStudent(
+      DataOutputStream data, Student student, Map<String, Integer> stringTable)
+      throws IOException {
+    data.writeInt(indexOf(stringTable, student.getName()));
+    data.writeInt(indexOf(stringTable, student.getFacultyNumber()));
+    data.writeInt(student.getCurrentYear() != null ? student.getCurrentYear() : NO_VALUE);
+    data.writeByte(student.getProgram() != null ? student.getProgram().ordinal() : -1);
+    data.writeInt(student.getGroup() != null ? student.getGroup() : NO_VALUE);
+    data.writeByte(student.getStatus() != null ? student.getStatus().ordinal() : -1);
+    Collection<Course> courses = student.getCourses();
+    data.writeInt(courses.size());
+    for (Course course : courses) {
+      data.writeByte(course.getDiscipline() != null ? course.getDiscipline().ordinal() : -1);
+      data.writeByte(
+          (course.isGraded() ? FLAG_GRADED : 0) | (course.isEnrolled() ? FLAG_ENROLLED : 0));
+      data.writeDouble(course.getGrade());
+    }
+  }
+
+  private static void intern(Map<String, Integer> stringTable, String value) {
+    if (value != null) {
+      stringTable.putIfAbsent(value, stringTable.size());
+    }
+  }
+
+  private static int indexOf(Map<String, Integer> stringTable, String value) {
+    return value != null ? stringTable.get(value) : -1;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static Integer readInteger(ByteBuffer buffer) {
+    int value = buffer.getInt();
+    return value != NO_VALUE ? value : null;
+  }
+
+  private static <T> T lookup(T[] values, int index) {
+    return index >= 0 ? values[index] : null;
+  }
+}
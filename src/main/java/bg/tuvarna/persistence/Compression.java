@@ -0,0 +1,110 @@
+package bg.tuvarna.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Компресията на файл с регистъра, избрана по разширението му. Компресираните файлове се четат и
+ * записват поточно, без да се зареждат целите в паметта:
+ *
+ * <ul>
+ *   <li>{@code .gz} - gzip, съвместим със стандартните инструменти;
+ *   <li>{@code .zb} - блоков формат ({@link BlockCodec}), по-бърз от gzip за сметка на по-слабото
+ *       компресиране.
+ * </ul>
+ *
+ * <p>В компресиран файл не може да се чете от произволна позиция, затова за него не се поддържат
+ * отложеното зареждане на курсовете, паралелното четене и копирането на непроменени записи при
+ * запис.
+ */
+public enum Compression {
+  NONE("") {
+    @Override
+    InputStream decompress(InputStream in) {
+      return in;
+    }
+
+    @Override
+    void writeTo(OutputStream target, RegistryFiles.ContentWriter writer) throws IOException {
+      writer.writeTo(target);
+    }
+  },
+  GZIP(".gz") {
+    @Override
+    InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    void writeTo(OutputStream target, RegistryFiles.ContentWriter writer) throws IOException {
+      GZIPOutputStream out = new GZIPOutputStream(target, BUFFER_SIZE);
+      writer.writeTo(out);
+      out.finish();
+    }
+  },
+  BLOCK(".zb") {
+    @Override
+    InputStream decompress(InputStream in) throws IOException {
+      return new BlockCodec.Input(in);
+    }
+
+    @Override
+    void writeTo(OutputStream target, RegistryFiles.ContentWriter writer) throws IOException {
+      BlockCodec.Output out = new BlockCodec.Output(target);
+      writer.writeTo(out);
+      out.finish();
+    }
+  };
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final String extension;
+
+  Compression(String extension) {
+    this.extension = extension;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Избира компресията по разширението на файла.
+   *
+   * @param filePath пътят до файла
+   * @return компресията или NONE, ако файлът не е компресиран
+   */
+  public static Compression forPath(Path filePath) {
+    String name = String.valueOf(filePath.getFileName());
+    for (Compression compression : values()) {
+      if (compression != NONE && name.endsWith(compression.extension)) {
+        return compression;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Обвива поток с компресирани данни в поток, който ги разкомпресира.
+   *
+   * @param in потокът с компресирани данни
+   * @return потокът с разкомпресираните данни
+   * @throws IOException при невалидно начало на компресираните данни
+   */
+  abstract InputStream decompress(InputStream in) throws IOException;
+
+  /**
+   * Компресира съдържанието, записано от writer, в целевия поток. Целевият поток не се
+   * затваря, но след края на метода в него са записани всички компресирани данни.
+   *
+   * @param target целевият поток
+   * @param writer записва некомпресираното съдържание
+   * @throws IOException при грешка при запис
+   */
+  abstract void writeTo(OutputStream target, RegistryFiles.ContentWriter writer)
+      throws IOException;
+}
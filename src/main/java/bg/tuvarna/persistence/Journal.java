@@ -0,0 +1,242 @@
+package bg.tuvarna.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Класът Journal представя дневник (write-ahead log) с промените по студентите, който се пази до
+ * файла с данните. Всяка промяна се добавя в края на дневника като компактен двоичен запис с
+ * пореден номер и контролна сума CRC32, така че цената на записа зависи от размера на промяната, а
+ * не от размера на регистъра. Дисковата синхронизация (fsync) се прави на партиди.
+ *
+ * <p>Формат на записа: дължина на тялото (int), тяло (пореден номер, операция, аргументи) и CRC32
+ * на тялото (int). При четене дневникът се прочита до първия непълен или повреден запис.
+ */
+public class Journal implements Closeable {
+  /** Полето в снимката на данните, пазещо последния включен в нея пореден номер. */
+  public static final String CHECKPOINT_FIELD = "journalCheckpoint";
+  /** Разширението на файла с дневника. */
+  public static final String EXTENSION = ".journal";
+  /** След колко записа се прави fsync. */
+  private static final int SYNC_BATCH_SIZE = 64;
+  /** Максимален размер на тялото на един запис. */
+  private static final int MAX_RECORD_SIZE = 1 << 16;
+
+  /** Операциите, които се записват в дневника. */
+  public enum Operation {
+    ENROLL,
+    ADVANCE,
+    CHANGE,
+    GRADUATE,
+    INTERRUPT,
+    RESUME,
+    ENROLL_IN,
+    ADD_GRADE
+  }
+
+  /**
+   * Запис от дневника.
+   *
+   * @param sequence пореден номер
+   * @param operation операция
+   * @param arguments аргументи на операцията
+   */
+  public record Entry(long sequence, Operation operation, List<String> arguments) {}
+
+  /**
+   * Резултат от прочитането на дневник.
+   *
+   * @param entries валидните записи
+   * @param validLength дължината в байтове на валидната част от файла
+   */
+  public record Contents(List<Entry> entries, long validLength) {}
+
+  private final FileChannel channel;
+  private long lastSequence;
+  private int unsyncedRecords;
+
+  private Journal(FileChannel channel, long lastSequence) {
+    this.channel = channel;
+    this.lastSequence = lastSequence;
+  }
+
+  /**
+   * Връща пътя до дневника за даден файл с данни.
+   *
+   * @param dataFile файлът с данни
+   * @return пътят до дневника
+   */
+  public static Path pathFor(Path dataFile) {
+    return dataFile.resolveSibling(dataFile.getFileName() + EXTENSION);
+  }
+
+  /**
+   * Прочита валидните записи от дневник. Ако файлът не съществува, връща празен резултат.
+   *
+   * @param journalPath пътят до дневника
+   * @return прочетените записи
+   * @throws IOException при грешка при четене
+   */
+  public static Contents read(Path journalPath) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    if (!Files.exists(journalPath)) {
+      return new Contents(entries, 0);
+    }
+    long validLength = 0;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(journalPath));
+        DataInputStream data = new DataInputStream(in)) {
+      while (true) {
+        int length = data.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+          break;
+        }
+        byte[] body = new byte[length];
+        data.readFully(body);
+        int checksum = data.readInt();
+        if (checksum != checksum(body)) {
+          break;
+        }
+        entries.add(decode(body));
+        validLength += Integer.BYTES + length + Integer.BYTES;
+      }
+    } catch (EOFException e) {
+      // Непълен последен запис - прекъсване по време на запис.
+    }
+    return new Contents(entries, validLength);
+  }
+
+  /**
+   * Отваря дневник за добавяне. Повредената опашка на файла (ако има такава) се отрязва.
+   *
+   * @param journalPath пътят до дневника
+   * @param validLength дължината на валидната част от файла
+   * @param lastSequence последният използван пореден номер
+   * @return отвореният дневник
+   * @throws IOException при грешка при отваряне
+   */
+  public static Journal open(Path journalPath, long validLength, long lastSequence)
+      throws IOException {
+    FileChannel channel =
+        FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    channel.truncate(validLength);
+    channel.position(validLength);
+    return new Journal(channel, lastSequence);
+  }
+
+  /**
+   * Добавя запис в края на дневника.
+   *
+   * @param operation операцията
+   * @param arguments аргументите на операцията
+   */
+  public synchronized void append(Operation operation, String... arguments) {
+    try {
+      byte[] body = encode(new Entry(lastSequence + 1, operation, Arrays.asList(arguments)));
+      ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + body.length + Integer.BYTES);
+      record.putInt(body.length).put(body).putInt(checksum(body)).flip();
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      lastSequence++;
+      if (++unsyncedRecords >= SYNC_BATCH_SIZE) {
+        sync();
+      }
+    } catch (IOException e) {
+      throw new JournalException("Failed to append to the journal.", e);
+    }
+  }
+
+  /**
+   * Синхронизира дневника с диска.
+   *
+   * @throws IOException при грешка при запис
+   */
+  public synchronized void sync() throws IOException {
+    if (unsyncedRecords > 0) {
+      channel.force(false);
+      unsyncedRecords = 0;
+    }
+  }
+
+  /**
+   * Изпразва дневника след като промените му са включени в нова снимка на данните.
+   *
+   * @throws IOException при грешка при запис
+   */
+  public synchronized void reset() throws IOException {
+    channel.truncate(0);
+    channel.position(0);
+    channel.force(true);
+    unsyncedRecords = 0;
+  }
+
+  /**
+   * Връща последния използван пореден номер.
+   *
+   * @return последният пореден номер
+   */
+  public synchronized long getLastSequence() {
+    return lastSequence;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    sync();
+    channel.close();
+  }
+
+  private static byte[] encode(Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeLong(entry.sequence());
+    data.writeByte(entry.operation().ordinal());
+    data.writeByte(entry.arguments().size());
+    for (String argument : entry.arguments()) {
+      data.writeUTF(argument);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Entry decode(byte[] body) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+    long sequence = data.readLong();
+    Operation operation = Operation.values()[data.readUnsignedByte()];
+    int count = data.readUnsignedByte();
+    List<String> arguments = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      arguments.add(data.readUTF());
+    }
+    return new Entry(sequence, operation, arguments);
+  }
+
+  private static int checksum(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  /** Изключение при неуспешен запис в дневника. */
+  public static class JournalException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public JournalException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Student;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Общият JSON кодек на регистъра. Пази един ObjectMapper и създадени предварително ObjectReader и
+ * ObjectWriter за Student и за списък от Course. Сериализаторите и десериализаторите на Jackson
+ * се изграждат скъпо и се кешират в ObjectMapper, затова всички пътища за четене и запис трябва
+ * да използват един и същ кодек, вместо да създават свой ObjectMapper.
+ *
+ * <p>По желание се включва модулът Blackbird, който заменя рефлексията при достъпа до полетата с
+ * генерирани ламбда функции. Общият кодек ({@link #shared()}) го включва, ако е зададено
+ * системното свойство {@value #BLACKBIRD_PROPERTY}=true.
+ *
+ * <p>Обектите от този клас са нишково-безопасни.
+ */
+public final class JsonCodec {
+  /** Системното свойство, с което общият кодек използва Blackbird. */
+  public static final String BLACKBIRD_PROPERTY = "bg.tuvarna.json.blackbird";
+
+  private static final TypeReference<List<Course>> COURSE_LIST = new TypeReference<>() {};
+
+  private final ObjectMapper objectMapper;
+  private final ObjectReader studentReader;
+  private final ObjectWriter studentWriter;
+  private final ObjectReader courseListReader;
+  private final boolean blackbird;
+
+  /** Общият кодек се създава при първото обръщение към него. */
+  private static final class Shared {
+    static final JsonCodec INSTANCE = new JsonCodec(Boolean.getBoolean(BLACKBIRD_PROPERTY));
+  }
+
+  /**
+   * @param blackbird дали да се използва модулът Blackbird
+   */
+  public JsonCodec(boolean blackbird) {
+    this.blackbird = blackbird;
+    objectMapper = new ObjectMapper();
+    if (blackbird) {
+      objectMapper.registerModule(new BlackbirdModule());
+    }
+    studentReader = objectMapper.readerFor(Student.class);
+    studentWriter = objectMapper.writerFor(Student.class);
+    courseListReader = objectMapper.readerFor(COURSE_LIST);
+  }
+
+  /**
+   * Връща общия кодек на програмата.
+   *
+   * @return кодекът
+   */
+  public static JsonCodec shared() {
+    return Shared.INSTANCE;
+  }
+
+  /**
+   * Връща ObjectMapper на кодека - за дърветата от JsonNode и за типовете, за които кодекът
+   * няма отделен ObjectReader или ObjectWriter.
+   *
+   * @return обектът за преобразуване между Java обекти и JSON
+   */
+  public ObjectMapper getObjectMapper() {
+    return objectMapper;
+  }
+
+  public JsonFactory getFactory() {
+    return objectMapper.getFactory();
+  }
+
+  public boolean isBlackbird() {
+    return blackbird;
+  }
+
+  /**
+   * Прочита един студент.
+   *
+   * @param parser парсерът, позициониран в началото на обекта на студента
+   * @return студентът
+   * @throws IOException при грешка при четене или невалиден запис
+   */
+  public Student readStudent(JsonParser parser) throws IOException {
+    return studentReader.readValue(parser);
+  }
+
+  /**
+   * Записва един студент.
+   *
+   * @param generator генераторът
+   * @param student студентът
+   * @throws IOException при грешка при запис
+   */
+  public void writeStudent(JsonGenerator generator, Student student) throws IOException {
+    studentWriter.writeValue(generator, student);
+  }
+
+  /**
+   * Прочита списък от курсове.
+   *
+   * @param parser парсерът, позициониран в началото на масива
+   * @return курсовете
+   * @throws IOException при грешка при четене или невалиден запис
+   */
+  public List<Course> readCourses(JsonParser parser) throws IOException {
+    return courseListReader.readValue(parser);
+  }
+}
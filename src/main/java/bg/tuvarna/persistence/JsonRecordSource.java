@@ -0,0 +1,129 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.StoredRecord;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON файл, отворен за отложено зареждане. Пази отворен FileChannel, от който се четат
+ * записите на отделните студенти при нужда. Тъй като при запис файлът се заменя атомарно с нов,
+ * каналът продължава да сочи към оригиналното съдържание, докато не бъде затворен.
+ */
+final class JsonRecordSource implements Closeable {
+  private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+  private final FileChannel channel;
+  private final JsonCodec codec;
+
+  JsonRecordSource(Path filePath, JsonCodec codec) throws IOException {
+    this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+    this.codec = codec;
+  }
+
+  /**
+   * Записът на един студент - обектът в масива "students" от първия до последния му байт.
+   *
+   * @param source файлът, в който се намира записът
+   * @param ordinal поредният номер на записа в масива
+   * @param offset отместването на записа във файла
+   * @param length дължината на записа в байтове
+   */
+  record Record(JsonRecordSource source, int ordinal, long offset, int length)
+      implements StoredRecord {
+    @Override
+    public List<Course> readCourses() {
+      try {
+        return source.readCourses(offset, length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Проверява дали записът е непосредствено след друг запис в масива на същия файл. Тогава
+     * байтовете между двата записа са само разделител.
+     *
+     * @param previous предишният запис
+     * @return true, ако записът следва предишния
+     */
+    boolean follows(Record previous) {
+      return source == previous.source && ordinal == previous.ordinal + 1;
+    }
+  }
+
+  private List<Course> readCourses(long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    read(channel, ByteBuffer.wrap(bytes), offset);
+    try (JsonParser parser = codec.getFactory().createParser(bytes)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return new ArrayList<>();
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("courseList".equals(fieldName) && value == JsonToken.START_ARRAY) {
+          return codec.readCourses(parser);
+        }
+        parser.skipChildren();
+      }
+    }
+    return new ArrayList<>();
+  }
+
+  /**
+   * Копира непроменен участък от файла в изходен поток.
+   *
+   * @param offset началото на участъка
+   * @param length дължината на участъка в байтове
+   * @param out изходният поток
+   * @throws IOException при грешка при четене или запис
+   */
+  void copy(long offset, long length, SpliceOutputStream out) throws IOException {
+    out.splice(channel, offset, length);
+  }
+
+  /** Копира участък от канал в изходен поток през буфер. */
+  static void copy(FileChannel channel, long offset, long length, OutputStream out)
+      throws IOException {
+    byte[] bytes = new byte[(int) Math.min(length, COPY_BUFFER_SIZE)];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long position = offset;
+    long end = offset + length;
+    while (position < end) {
+      buffer.clear().limit((int) Math.min(bytes.length, end - position));
+      read(channel, buffer, position);
+      out.write(bytes, 0, buffer.position());
+      position += buffer.position();
+    }
+  }
+
+  private static void read(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    long current = position;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, current);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of the registry file.");
+      }
+      current += read;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,369 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Класът JsonRegistryFile чете JSON файл със студенти поточно, без да изгражда цялото дърво от
+ * JsonNode обекти. Всеки елемент от масива "students" се десериализира директно в обект Student
+ * и се записва в хранилището. Останалите полета на най-горно ниво се запазват, за да бъдат
+ * записани обратно при запазване на файла.
+ *
+ * <p>Записът също е поточен: студентите се сериализират един по един чрез JsonGenerator във
+ * временен файл в същата директория, който след това атомарно замества целевия файл. Така при
+ * прекъсване по средата на записа оригиналният файл остава непокътнат.
+ *
+ * <p>В режим на отложено зареждане от всеки студент се прочитат само основните полета, а
+ * масивът courseList се прескача, като се запомнят отместването и дължината на записа. Курсовете
+ * се прочитат от файла при първото обръщение към тях.
+ *
+ * <p>Големите масиви със студенти се четат паралелно от {@link ParallelStudentReader} - по един
+ * участък на ядро.
+ *
+ * <p>И в двата режима всеки студент запомня мястото на записа си във файла. Студентите, които не
+ * са променени след отварянето, се записват обратно байт по байт от оригиналния файл, без да се
+ * сериализират.
+ *
+ * <p>Файловете с разширение {@code .gz} или {@code .zb} се четат и записват компресирани (виж
+ * {@link Compression}). Те винаги се зареждат изцяло и последователно.
+ */
+public class JsonRegistryFile implements RegistryFormat {
+  /** Името на полето, съдържащо масива със студенти. */
+  public static final String STUDENTS_FIELD = "students";
+
+  private final JsonCodec codec;
+  /** Дали курсовете да се зареждат чак при първото обръщение към тях. */
+  private final boolean lazy;
+  /** Броят на нишките, които четат студентите. */
+  private final int workers;
+  /** Отвореният файл, от който се зареждат курсовете, или null. */
+  private JsonRecordSource source;
+
+  public JsonRegistryFile(JsonCodec codec) {
+    this(codec, false);
+  }
+
+  /**
+   * @param codec JSON кодекът
+   * @param lazy дали курсовете да се зареждат чак при първото обръщение към тях
+   */
+  public JsonRegistryFile(JsonCodec codec, boolean lazy) {
+    this(codec, lazy, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param codec JSON кодекът
+   * @param lazy дали курсовете да се зареждат чак при първото обръщение към тях
+   * @param workers броят на нишките, които четат студентите; при 1 се четат последователно
+   */
+  public JsonRegistryFile(JsonCodec codec, boolean lazy, int workers) {
+    this.codec = codec;
+    this.lazy = lazy;
+    this.workers = workers;
+  }
+
+  @Override
+  public ObjectNode read(Path filePath, StudentRepository studentRepository) throws IOException {
+    Compression compression = Compression.forPath(filePath);
+    if (compression != Compression.NONE) {
+      return readCompressed(filePath, compression, studentRepository);
+    }
+    ObjectNode otherFields = codec.getObjectMapper().createObjectNode();
+    try (JsonParser parser = codec.getFactory().createParser(filePath.toFile())) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return otherFields;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (STUDENTS_FIELD.equals(fieldName) && value == JsonToken.START_ARRAY) {
+          otherFields.putNull(STUDENTS_FIELD);
+          long arrayEnd = readStudentsInParallel(parser, filePath, studentRepository);
+          if (arrayEnd >= 0) {
+            readRemainingFields(filePath, arrayEnd, otherFields);
+            return otherFields;
+          }
+          readStudents(parser, filePath, studentRepository);
+        } else {
+          otherFields.set(fieldName, codec.getObjectMapper().readTree(parser));
+        }
+      }
+    }
+    return otherFields;
+  }
+
+  /**
+   * Прочита компресиран файл. В него не може да се чете от произволна позиция, затова студентите
+   * се прочитат изцяло и последователно и не се свързват със записи във файла. Празен файл
+   * (например току-що създаден от {@code open}) няма заглавка на компресията и се приема за
+   * празен регистър, както при некомпресираните файлове.
+   */
+  private ObjectNode readCompressed(
+      Path filePath, Compression compression, StudentRepository studentRepository)
+      throws IOException {
+    ObjectNode otherFields = codec.getObjectMapper().createObjectNode();
+    if (Files.size(filePath) == 0) {
+      return otherFields;
+    }
+    try (InputStream file = Files.newInputStream(filePath);
+        InputStream in = compression.decompress(file);
+        JsonParser parser = codec.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return otherFields;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (STUDENTS_FIELD.equals(fieldName) && value == JsonToken.START_ARRAY) {
+          otherFields.putNull(STUDENTS_FIELD);
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            studentRepository.save(codec.readStudent(parser));
+          }
+        } else {
+          otherFields.set(fieldName, codec.getObjectMapper().readTree(parser));
+        }
+      }
+    }
+    return otherFields;
+  }
+
+  /**
+   * Прочита студентите паралелно, ако има повече от една нишка и файлът е достатъчно голям.
+   *
+   * @param parser парсерът, позициониран в началото на масива със студенти
+   * @return отместването след края на масива или -1, ако студентите трябва да се прочетат
+   *     последователно
+   */
+  private long readStudentsInParallel(
+      JsonParser parser, Path filePath, StudentRepository studentRepository) throws IOException {
+    long arrayStart = parser.getTokenLocation().getByteOffset();
+    if (workers < 2
+        || Files.size(filePath) - arrayStart < ParallelStudentReader.MIN_PARALLEL_BYTES) {
+      return -1;
+    }
+    if (source == null) {
+      source = new JsonRecordSource(filePath, codec);
+    }
+    return new ParallelStudentReader(codec, lazy, workers)
+        .read(filePath, arrayStart, source, studentRepository);
+  }
+
+  /**
+   * Прочита полетата след масива със студенти, когато той е прочетен паралелно. Остатъкът на
+   * файла започва със запетая или с края на обекта, затова се чете като нов обект.
+   *
+   * @param arrayEnd отместването след края на масива
+   */
+  private void readRemainingFields(Path filePath, long arrayEnd, ObjectNode otherFields)
+      throws IOException {
+    byte[] rest;
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      rest = new byte[(int) (channel.size() - arrayEnd)];
+      ByteBuffer buffer = ByteBuffer.wrap(rest);
+      while (buffer.hasRemaining() && channel.read(buffer, arrayEnd + buffer.position()) >= 0) {
+        // Чете до края на файла
+      }
+    }
+    int start = 0;
+    while (start < rest.length && Character.isWhitespace(rest[start])) {
+      start++;
+    }
+    if (start < rest.length && rest[start] == ',') {
+      start++;
+    }
+    InputStream in =
+        new SequenceInputStream(
+            new ByteArrayInputStream(new byte[] {'{'}),
+            new ByteArrayInputStream(rest, start, rest.length - start));
+    try (JsonParser parser = codec.getFactory().createParser(in)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        parser.nextToken();
+        otherFields.set(fieldName, codec.getObjectMapper().readTree(parser));
+      }
+    }
+  }
+
+  /**
+   * Прочита студентите и ги свързва със записите им във файла. В режим на отложено зареждане
+   * се прочитат само основните им полета.
+   *
+   * @param parser парсерът, позициониран в началото на масива със студенти
+   */
+  private void readStudents(JsonParser parser, Path filePath, StudentRepository studentRepository)
+      throws IOException {
+    if (source == null) {
+      source = new JsonRecordSource(filePath, codec);
+    }
+    int ordinal = 0;
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      long offset = parser.getTokenLocation().getByteOffset();
+      Student student = lazy ? readHeader(parser) : codec.readStudent(parser);
+      long length = parser.getCurrentLocation().getByteOffset() - offset;
+      student.attachStoredRecord(
+          new JsonRecordSource.Record(source, ordinal++, offset, (int) length), lazy);
+      studentRepository.save(student);
+    }
+  }
+
+  /**
+   * Прочита основните полета на един студент и прескача курсовете му.
+   *
+   * @param parser парсерът, позициониран в началото на обекта на студента
+   * @return студентът без курсове
+   */
+  static Student readHeader(JsonParser parser) throws IOException {
+    Student student = new Student();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      switch (fieldName) {
+        case "name" -> student.setName(parser.getValueAsString());
+        case "facultyNumber" -> student.setFacultyNumber(parser.getValueAsString());
+        case "currentYear" -> student.setCurrentYear(readInteger(parser, value));
+        case "group" -> student.setGroup(readInteger(parser, value));
+        case "program" -> student.setProgram(readEnum(parser, value, Program.class));
+        case "status" -> student.setStatus(readEnum(parser, value, Status.class));
+        default -> parser.skipChildren();
+      }
+    }
+    return student;
+  }
+
+  private static Integer readInteger(JsonParser parser, JsonToken value) throws IOException {
+    return value == JsonToken.VALUE_NULL ? null : parser.getValueAsInt();
+  }
+
+  private static <E extends Enum<E>> E readEnum(JsonParser parser, JsonToken value, Class<E> type)
+      throws IOException {
+    if (value == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    try {
+      return Enum.valueOf(type, parser.getText());
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException(
+          parser, "Unknown " + type.getSimpleName() + ": " + parser.getText());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (source != null) {
+      source.close();
+      source = null;
+    }
+  }
+
+  @Override
+  public void write(Path filePath, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException {
+    Compression compression = Compression.forPath(filePath);
+    RegistryFiles.writeAtomically(
+        filePath,
+        file ->
+            compression.writeTo(
+                file,
+                target -> {
+                  // Генераторът не изпразва буфера до файла при всеки студент, а го предава на out
+                  SpliceOutputStream out = new SpliceOutputStream(target);
+                  try (JsonGenerator generator = codec.getFactory().createGenerator(out)) {
+                    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                    generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+                    writeDocument(generator, out, otherFields, students);
+                  }
+                  out.flush();
+                }));
+  }
+
+  private void writeDocument(
+      JsonGenerator generator, SpliceOutputStream out, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException {
+    generator.writeStartObject();
+    boolean studentsWritten = false;
+    if (otherFields != null) {
+      Iterator<Map.Entry<String, JsonNode>> fields = otherFields.fields();
+      while (fields.hasNext()) {
+        Map.Entry<String, JsonNode> field = fields.next();
+        if (STUDENTS_FIELD.equals(field.getKey())) {
+          writeStudents(generator, out, students);
+          studentsWritten = true;
+        } else {
+          generator.writeFieldName(field.getKey());
+          codec.getObjectMapper().writeTree(generator, field.getValue());
+        }
+      }
+    }
+    if (!studentsWritten) {
+      writeStudents(generator, out, students);
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * Записва масива със студенти. Поредиците от непроменени студенти, които са последователни и в
+   * оригиналния файл, се копират от него като един непрекъснат участък, а останалите студенти се
+   * сериализират. Така времето за запис след малко промени зависи главно от броя на промените.
+   */
+  private void writeStudents(JsonGenerator generator, SpliceOutputStream out, Iterable<Student> students)
+      throws IOException {
+    generator.writeArrayFieldStart(STUDENTS_FIELD);
+    JsonRecordSource.Record first = null;
+    JsonRecordSource.Record last = null;
+    for (Student student : students) {
+      if (student.getStoredRecord() instanceof JsonRecordSource.Record record) {
+        if (last != null && record.follows(last)) {
+          last = record;
+          continue;
+        }
+        copyRecords(generator, out, first, last);
+        first = record;
+        last = record;
+      } else {
+        copyRecords(generator, out, first, last);
+        first = null;
+        last = null;
+        codec.writeStudent(generator, student);
+      }
+    }
+    copyRecords(generator, out, first, last);
+    generator.writeEndArray();
+  }
+
+  /** Копира записите от first до last включително, ако има такива. */
+  private static void copyRecords(
+      JsonGenerator generator,
+      SpliceOutputStream out,
+      JsonRecordSource.Record first,
+      JsonRecordSource.Record last)
+      throws IOException {
+    if (first == null) {
+      return;
+    }
+    // Празната сурова стойност извежда само разделителя, след което участъкът се копира
+    generator.writeRawValue("");
+    generator.flush();
+    first.source().copy(first.offset(), last.offset() + last.length() - first.offset(), out);
+  }
+}
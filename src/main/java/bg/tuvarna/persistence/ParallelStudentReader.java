@@ -0,0 +1,290 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Чете масива "students" на JSON файл паралелно. Масивът се обхожда веднъж байт по байт, като се
+ * следят само кавичките и скобите, и се разделя на участъци по границите на записите - по един
+ * участък на нишка. Всеки участък се десериализира от отделна нишка със собствен парсер, а
+ * прочетените студенти се добавят в хранилището в реда на файла, докато следващите участъци още
+ * се четат.
+ *
+ * <p>Ако масивът съдържа нещо различно от обекти, разделянето се отказва и файлът се чете
+ * последователно.
+ */
+final class ParallelStudentReader {
+  /** Масиви, по-малки от това, се четат последователно. */
+  static final long MIN_PARALLEL_BYTES = 1 << 20;
+
+  private static final int SCAN_BUFFER_SIZE = 1 << 20;
+  private static final byte[] ARRAY_START = {'['};
+  private static final byte[] ARRAY_END = {']'};
+
+  private final JsonCodec codec;
+  private final boolean lazy;
+  private final int workers;
+
+  /**
+   * @param codec JSON кодекът
+   * @param lazy дали да се прочитат само основните полета на студентите
+   * @param workers броят на нишките и на участъците
+   */
+  ParallelStudentReader(JsonCodec codec, boolean lazy, int workers) {
+    this.codec = codec;
+    this.lazy = lazy;
+    this.workers = workers;
+  }
+
+  /** Участък от масива: от началото на първия до края на последния запис в него. */
+  private record Chunk(long start, long end) {}
+
+  /** Границите на участъците и позицията след края на масива. */
+  private record Layout(List<Chunk> chunks, long arrayEnd) {}
+
+  /** Прочетените от един участък студенти и местата на записите им. */
+  private record ChunkResult(List<Student> students, long[] offsets, int[] lengths) {}
+
+  /**
+   * Чете масива със студенти и ги записва в хранилището в реда на файла.
+   *
+   * @param filePath пътят до файла
+   * @param arrayStart отместването на отварящата скоба на масива
+   * @param source файлът, към чиито записи се свързват студентите
+   * @param studentRepository хранилището
+   * @return отместването след затварящата скоба на масива или -1, ако масивът не може да се
+   *     раздели и трябва да се прочете последователно; тогава в хранилището не е записано нищо
+   * @throws IOException при грешка при четене или невалиден запис
+   */
+  long read(
+      Path filePath, long arrayStart, JsonRecordSource source, StudentRepository studentRepository)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      long chunkSize = Math.max(1, (channel.size() - arrayStart) / workers);
+      Layout layout = scan(channel, arrayStart, chunkSize);
+      if (layout == null) {
+        return -1;
+      }
+      try (ExecutorService executor = Executors.newFixedThreadPool(workers)) {
+        List<Future<ChunkResult>> results = new ArrayList<>();
+        for (Chunk chunk : layout.chunks()) {
+          results.add(executor.submit(() -> readChunk(channel, chunk)));
+        }
+        int ordinal = 0;
+        try {
+          for (Future<ChunkResult> result : results) {
+            ordinal = merge(await(result), ordinal, source, studentRepository);
+          }
+        } finally {
+          results.forEach(result -> result.cancel(true));
+        }
+      }
+      return layout.arrayEnd();
+    }
+  }
+
+  /**
+   * Намира границите на записите в масива. Участъците завършват на първата граница след
+   * поредните chunkSize байта.
+   *
+   * @return участъците или null, ако масивът съдържа елементи, които не са обекти
+   */
+  private static Layout scan(FileChannel channel, long arrayStart, long chunkSize)
+      throws IOException {
+    List<Chunk> chunks = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    byte[] bytes = buffer.array();
+    long bufferStart = arrayStart + 1;
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    long chunkStart = -1;
+    long lastEnd = -1;
+    long nextSplit = arrayStart + chunkSize;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, bufferStart);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file in the students array.");
+      }
+      for (int i = 0; i < read; i++) {
+        byte b = bytes[i];
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (b == '\\') {
+            escaped = true;
+          } else if (b == '"') {
+            inString = false;
+          }
+          continue;
+        }
+        long position = bufferStart + i;
+        switch (b) {
+          case '"' -> {
+            if (depth == 0) {
+              return null;
+            }
+            inString = true;
+          }
+          case '{', '[' -> {
+            if (depth == 0) {
+              if (b == '[') {
+                return null;
+              }
+              if (chunkStart < 0) {
+                chunkStart = position;
+              } else if (position >= nextSplit) {
+                chunks.add(new Chunk(chunkStart, lastEnd));
+                chunkStart = position;
+                nextSplit = position + chunkSize;
+              }
+            }
+            depth++;
+          }
+          case '}', ']' -> {
+            if (depth == 0) {
+              if (b == '}') {
+                return null;
+              }
+              if (chunkStart >= 0) {
+                chunks.add(new Chunk(chunkStart, lastEnd));
+              }
+              return new Layout(chunks, position + 1);
+            }
+            depth--;
+            if (depth == 0) {
+              lastEnd = position + 1;
+            }
+          }
+          case ' ', '\t', '\r', '\n', ',' -> {}
+          default -> {
+            if (depth == 0) {
+              return null;
+            }
+          }
+        }
+      }
+      bufferStart += read;
+    }
+  }
+
+  /**
+   * Десериализира записите в един участък. Участъкът се огражда със скоби, за да бъде валиден
+   * JSON масив, затова отместванията в парсера са с единица по-големи от тези в участъка.
+   */
+  private ChunkResult readChunk(FileChannel channel, Chunk chunk) throws IOException {
+    List<Student> students = new ArrayList<>();
+    long[] offsets = new long[16];
+    int[] lengths = new int[16];
+    InputStream in =
+        new SequenceInputStream(
+            Collections.enumeration(
+                List.of(
+                    new ByteArrayInputStream(ARRAY_START),
+                    new RangeInputStream(channel, chunk.start(), chunk.end()),
+                    new ByteArrayInputStream(ARRAY_END))));
+    long base = chunk.start() - ARRAY_START.length;
+    try (JsonParser parser = codec.getFactory().createParser(in)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        long offset = base + parser.getTokenLocation().getByteOffset();
+        Student student =
+            lazy ? JsonRegistryFile.readHeader(parser) : codec.readStudent(parser);
+        long length = base + parser.getCurrentLocation().getByteOffset() - offset;
+        int index = students.size();
+        if (index == offsets.length) {
+          offsets = Arrays.copyOf(offsets, index * 2);
+          lengths = Arrays.copyOf(lengths, index * 2);
+        }
+        offsets[index] = offset;
+        lengths[index] = (int) length;
+        students.add(student);
+      }
+    }
+    return new ChunkResult(students, offsets, lengths);
+  }
+
+  /** Свързва студентите от участък със записите им и ги записва в хранилището. */
+  private int merge(
+      ChunkResult result, int ordinal, JsonRecordSource source, StudentRepository repository) {
+    List<Student> students = result.students();
+    for (int i = 0; i < students.size(); i++) {
+      Student student = students.get(i);
+      student.attachStoredRecord(
+          new JsonRecordSource.Record(source, ordinal++, result.offsets()[i], result.lengths()[i]),
+          lazy);
+      repository.save(student);
+    }
+    return ordinal;
+  }
+
+  private static ChunkResult await(Future<ChunkResult> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading students.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Поток, който чете участък от файл. Чете с позиция, без да мести канала, затова няколко
+   * такива потока могат да четат от един канал едновременно.
+   */
+  private static final class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    RangeInputStream(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int count = (int) Math.min(length, end - position);
+      int read = channel.read(ByteBuffer.wrap(bytes, offset, count), position);
+      if (read < 0) {
+        return -1;
+      }
+      position += read;
+      return read;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package bg.tuvarna.persistence;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** Помощни методи за безопасен запис на файлове с данни. */
+final class RegistryFiles {
+
+  /** Записва съдържание в изходен поток. Потокът не трябва да се затваря. */
+  @FunctionalInterface
+  interface ContentWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private RegistryFiles() {}
+
+  /**
+   * Записва съдържание във временен файл в директорията на целевия файл, синхронизира го с диска
+   * и атомарно замества целевия файл с него. При грешка целевият файл остава непокътнат.
+   *
+   * @param filePath пътят до целевия файл.
+   * @param writer записва съдържанието.
+   * @throws IOException при грешка при запис.
+   */
+  static void writeAtomically(Path filePath, ContentWriter writer) throws IOException {
+    Path target = filePath.toAbsolutePath();
+    Path tempFile = createTempFile(target);
+    try {
+      try (FileOutputStream out = new FileOutputStream(tempFile.toFile())) {
+        writer.writeTo(out);
+        out.getChannel().force(true);
+      }
+      moveAtomically(tempFile, target);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Създава временен файл до целевия. За разлика от Files.createTempFile, правата на файла
+   * следват umask или, ако целевият файл съществува, се копират от него.
+   */
+  private static Path createTempFile(Path target) throws IOException {
+    Path tempFile =
+        Files.createFile(
+            target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp"));
+    if (Files.exists(target)) {
+      try {
+        Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(target));
+      } catch (UnsupportedOperationException e) {
+        // Файловата система не поддържа POSIX права.
+      }
+    }
+    return tempFile;
+  }
+
+  private static void moveAtomically(Path source, Path target) throws IOException {
+    try {
+      Files.move(
+          source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Интерфейсът RegistryFormat описва формат на файл, в който се пазят студентите. Форматите,
+ * които четат данни от файла и след отварянето му, го освобождават при {@link #close()}.
+ */
+public interface RegistryFormat extends Closeable {
+  /**
+   * Чете файла и записва студентите в хранилището.
+   *
+   * @param filePath пътят до файла.
+   * @param studentRepository хранилището, в което се записват прочетените студенти.
+   * @return Връща останалите полета на най-горно ниво. На мястото на масива със студенти се
+   *     оставя null стойност, за да се запази редът на полетата при запис.
+   * @throws IOException при грешка при четене или невалидно съдържание.
+   */
+  ObjectNode read(Path filePath, StudentRepository studentRepository) throws IOException;
+
+  /**
+   * Записва студентите и останалите полета във файл. Данните се записват във временен файл в
+   * същата директория, който след успешен запис замества целевия.
+   *
+   * @param filePath пътят до целевия файл.
+   * @param otherFields полетата на най-горно ниво извън масива със студенти; може да е null.
+   * @param students студентите за запис.
+   * @throws IOException при грешка при запис.
+   */
+  void write(Path filePath, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException;
+
+  /**
+   * Освобождава ресурсите, заети при четенето на файла. По подразбиране не прави нищо.
+   *
+   * @throws IOException при грешка при затваряне.
+   */
+  @Override
+  default void close() throws IOException {}
+}
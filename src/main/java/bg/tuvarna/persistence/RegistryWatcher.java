@@ -0,0 +1,109 @@
+package bg.tuvarna.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Следи файл с регистъра за промени от други процеси чрез {@link WatchService}. Следи се
+ * директорията на файла, защото атомарният запис замества файла чрез преименуване, а не го
+ * променя на място.
+ *
+ * <p>Един запис предизвиква няколко събития, затова след първото събитие се изчаква файлът да не
+ * се променя {@value #QUIET_PERIOD_MILLIS} ms и обработчикът се извиква веднъж за цялата поредица.
+ * Обработчикът се изпълнява в отделна нишка, а собствените записи на програмата също предизвикват
+ * събития - обработчикът трябва сам да ги разпознае, например по контролната сума на файла
+ * ({@link #checksum(Path)}). Времето на промяна не е подходящо, защото при груба точност на
+ * файловата система запис от друг процес може да има същото време.
+ */
+public final class RegistryWatcher implements Closeable {
+  /** Времето без нови събития, след което промяната се смята за завършена. */
+  static final long QUIET_PERIOD_MILLIS = 200;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final WatchService watchService;
+  private final Path fileName;
+  private final Runnable onChange;
+
+  /**
+   * Започва да следи файла.
+   *
+   * @param filePath пътят до файла
+   * @param onChange обработчикът, който се извиква след промяна на файла
+   * @throws IOException ако директорията на файла не може да бъде следена
+   */
+  public RegistryWatcher(Path filePath, Runnable onChange) throws IOException {
+    Path directory = filePath.toAbsolutePath().getParent();
+    this.fileName = filePath.getFileName();
+    this.onChange = onChange;
+    watchService = directory.getFileSystem().newWatchService();
+    directory.register(
+        watchService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    Thread.ofPlatform().daemon().name("registry-watcher").start(this::watch);
+  }
+
+  /**
+   * Изчислява контролната сума (CRC32C) на съдържанието на файл.
+   *
+   * @param filePath пътят до файла
+   * @return контролната сума
+   * @throws IOException при грешка при четене на файла
+   */
+  public static long checksum(Path filePath) throws IOException {
+    CRC32C crc = new CRC32C();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(filePath)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return crc.getValue();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        boolean changed = drain(watchService.take());
+        WatchKey next;
+        while ((next = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= drain(next);
+        }
+        if (changed) {
+          onChange.run();
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Следенето е спряно
+    }
+  }
+
+  /** Прочита събитията и проверява дали някое от тях се отнася за файла. */
+  private boolean drain(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+
+  /** Спира следенето на файла. */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -0,0 +1,407 @@
+package bg.tuvarna.persistence;
+
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.ShardedStudentRepository;
+import bg.tuvarna.repositories.ShardedStudentRepository.Partitioning;
+import bg.tuvarna.repositories.StudentRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Регистър, разделен на няколко файла (шардове) в една директория. Директорията съдържа манифест
+ * ({@value #MANIFEST}) с начина на разпределение, имената на файловете на шардовете и
+ * останалите полета на най-горно ниво:
+ *
+ * <pre>
+ * {"partitioning": "PROGRAM", "shards": ["CS.json", "SE.json", "SIT.json"]}
+ * {"partitioning": "HASH", "shards": ["shard-0.json", "shard-1.json", ...]}
+ * </pre>
+ *
+ * <p>Всеки шард е обикновен файл със студенти във формата, определен от разширението му, и се
+ * зарежда в отделното хранилище на своя шард в {@link ShardedStudentRepository}. Шардовете се
+ * четат и записват паралелно - по една нишка на ядро. При запис в същата директория се записват
+ * само шардовете, променени след последния запис, а манифестът - само при създаване на
+ * регистъра. При запис в друга директория студентите се разпределят наново и се записват всички
+ * шардове.
+ */
+public class ShardedRegistryFile implements RegistryFormat {
+  /** Името на манифеста в директорията на регистъра. */
+  public static final String MANIFEST = "manifest.json";
+
+  private static final String PARTITIONING_FIELD = "partitioning";
+  private static final String SHARDS_FIELD = "shards";
+  private static final String JSON_EXTENSION = ".json";
+
+  private final ObjectMapper objectMapper;
+  /** Избира формата на файл на шард по пътя му. */
+  private final Function<Path, RegistryFormat> shardFormats;
+
+  private Partitioning partitioning;
+  /** Имената на файловете на шардовете, относително към директорията. */
+  private List<String> shardFiles;
+  /** Директорията, от която е зареден регистърът, или null. */
+  private Path directory;
+  /** Хранилището, в което е зареден регистърът, или null. */
+  private ShardedStudentRepository repository;
+  /** Форматът и останалите полета на всеки зареден шард. */
+  private RegistryFormat[] formats;
+  private ObjectNode[] shardFields;
+  /** Дали манифестът трябва да се запише при следващия запис в същата директория. */
+  private boolean manifestPending;
+
+  /**
+   * @param codec JSON кодекът
+   * @param shardFormats избира формата на файл на шард по пътя му
+   */
+  public ShardedRegistryFile(JsonCodec codec, Function<Path, RegistryFormat> shardFormats) {
+    this.objectMapper = codec.getObjectMapper();
+    this.shardFormats = shardFormats;
+  }
+
+  /**
+   * Проверява дали пътят сочи разделен регистър - директория или манифест.
+   *
+   * @param path пътят
+   * @return true, ако пътят е директория или файл с името на манифеста
+   */
+  public static boolean isSharded(Path path) {
+    return Files.isDirectory(path)
+        || path.getFileName() != null && MANIFEST.equals(path.getFileName().toString());
+  }
+
+  /**
+   * Връща общия размер на манифеста и шардовете в директорията на регистъра.
+   *
+   * @param path директорията или манифестът
+   * @return размерът в байтове
+   * @throws IOException при грешка при достъп до файловете
+   */
+  public static long size(Path path) throws IOException {
+    long size = 0;
+    try (Stream<Path> files = Files.list(directoryOf(path))) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (Files.isRegularFile(file)) {
+          size += Files.size(file);
+        }
+      }
+    }
+    return size;
+  }
+
+  private static Path directoryOf(Path path) {
+    Path absolute = path.toAbsolutePath().normalize();
+    return Files.isDirectory(absolute) || !MANIFEST.equals(String.valueOf(absolute.getFileName()))
+        ? absolute
+        : absolute.getParent();
+  }
+
+  /**
+   * Задава разпределението на студентите при запис в нова директория.
+   *
+   * @param layout "program" за разпределение по програма или броят на шардовете за
+   *     разпределение по хеш на факултетния номер
+   * @param binary дали шардовете да се записват в двоичен формат
+   * @throws IllegalArgumentException при невалидно разпределение
+   */
+  public void setLayout(String layout, boolean binary) {
+    String extension = binary ? BinaryRegistryFile.EXTENSION : JSON_EXTENSION;
+    shardFiles = new ArrayList<>();
+    if ("program".equalsIgnoreCase(layout)) {
+      partitioning = Partitioning.PROGRAM;
+      for (Program program : Program.values()) {
+        shardFiles.add(program.name() + extension);
+      }
+      return;
+    }
+    int count;
+    try {
+      count = Integer.parseInt(layout);
+    } catch (NumberFormatException e) {
+      count = 0;
+    }
+    if (count < 1) {
+      throw new IllegalArgumentException("Invalid shard layout: " + layout);
+    }
+    partitioning = Partitioning.HASH;
+    for (int i = 0; i < count; i++) {
+      shardFiles.add("shard-" + i + extension);
+    }
+  }
+
+  /**
+   * Подготвя зареждането на регистър: прочита манифеста или, ако в директорията няма манифест,
+   * създава нов регистър с даденото разпределение. Студентите се зареждат с
+   * {@link #read(Path, StudentRepository)} във върнатото хранилище.
+   *
+   * @param path директорията или манифестът
+   * @param layout разпределението на нов регистър (виж {@link #setLayout(String, boolean)}) или
+   *     null, ако регистърът трябва да съществува
+   * @param binary дали шардовете на нов регистър да са в двоичен формат
+   * @param shards създава празно хранилище за всеки шард
+   * @return хранилището на регистъра
+   * @throws IOException при липсващ или невалиден манифест
+   */
+  public ShardedStudentRepository open(
+      Path path, String layout, boolean binary, Supplier<StudentRepository> shards)
+      throws IOException {
+    Path manifestPath = directoryOf(path).resolve(MANIFEST);
+    if (Files.exists(manifestPath)) {
+      readManifest(manifestPath);
+    } else if (layout != null) {
+      setLayout(layout, binary);
+      Files.createDirectories(directoryOf(path));
+      manifestPending = true;
+    } else {
+      throw new IOException("No shard manifest found in " + directoryOf(path));
+    }
+    repository = new ShardedStudentRepository(partitioning, shardFiles.size(), shards);
+    return repository;
+  }
+
+  private void readManifest(Path manifestPath) throws IOException {
+    JsonNode manifest = objectMapper.readTree(manifestPath.toFile());
+    JsonNode files = manifest.path(SHARDS_FIELD);
+    try {
+      String name = manifest.path(PARTITIONING_FIELD).asText();
+      partitioning = Partitioning.valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid shard manifest: unknown partitioning.", e);
+    }
+    if (!files.isArray()
+        || files.isEmpty()
+        || partitioning == Partitioning.PROGRAM && files.size() != Program.values().length) {
+      throw new IOException("Invalid shard manifest: unexpected shard list.");
+    }
+    shardFiles = new ArrayList<>();
+    for (JsonNode file : files) {
+      shardFiles.add(file.asText());
+    }
+  }
+
+  /**
+   * Зарежда шардовете паралелно, всеки в своето хранилище. Липсващите файлове на шардове се
+   * считат за празни.
+   *
+   * @param filePath директорията или манифестът
+   * @param studentRepository хранилището, върнато от {@link #open}
+   * @return полетата от манифеста извън разпределението
+   * @throws IOException при грешка при четене на някой шард
+   */
+  @Override
+  public ObjectNode read(Path filePath, StudentRepository studentRepository) throws IOException {
+    if (studentRepository != repository) {
+      throw new IllegalArgumentException("The repository was not created by this registry.");
+    }
+    directory = directoryOf(filePath);
+    int count = shardFiles.size();
+    formats = new RegistryFormat[count];
+    shardFields = new ObjectNode[count];
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      int shard = i;
+      Path shardPath = directory.resolve(shardFiles.get(shard));
+      formats[shard] = shardFormats.apply(shardPath);
+      tasks.add(
+          () -> {
+            if (Files.exists(shardPath)) {
+              shardFields[shard] = formats[shard].read(shardPath, repository.getShard(shard));
+            }
+            repository.markLoaded(shard);
+            return null;
+          });
+    }
+    runAll(tasks);
+
+    Path manifestPath = directory.resolve(MANIFEST);
+    ObjectNode otherFields =
+        Files.exists(manifestPath)
+            ? (ObjectNode) objectMapper.readTree(manifestPath.toFile())
+            : objectMapper.createObjectNode();
+    otherFields.remove(PARTITIONING_FIELD);
+    otherFields.remove(SHARDS_FIELD);
+    return otherFields;
+  }
+
+  /**
+   * Записва регистъра. В директорията, от която е зареден, се записват паралелно само
+   * променените шардове. В друга директория студентите се разпределят според разпределението на
+   * регистъра и се записват всички шардове и манифестът.
+   *
+   * @param filePath директорията или манифестът
+   * @param otherFields полетата на манифеста извън разпределението; може да е null
+   * @param students студентите за запис - всички студенти на регистъра
+   * @throws IOException при грешка при запис на някой файл
+   */
+  @Override
+  public void write(Path filePath, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException {
+    Path target = directoryOf(filePath);
+    if (repository != null && target.equals(directory)) {
+      writeModified(otherFields);
+    } else {
+      writeAll(target, otherFields, students);
+    }
+  }
+
+  private void writeModified(ObjectNode otherFields) throws IOException {
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < shardFiles.size(); i++) {
+      if (!manifestPending && !repository.isModified(i)) {
+        continue;
+      }
+      int shard = i;
+      tasks.add(
+          () -> {
+            long modifications = repository.getModifications(shard);
+            formats[shard].write(
+                directory.resolve(shardFiles.get(shard)),
+                shardFields[shard],
+                repository.getShard(shard).snapshot());
+            repository.markSaved(shard, modifications);
+            return null;
+          });
+    }
+    runAll(tasks);
+    // Манифестът се записва след шардовете, за да не сочи файлове, които още ги няма
+    if (manifestPending) {
+      writeManifest(directory, otherFields);
+      manifestPending = false;
+    }
+  }
+
+  private void writeAll(Path target, ObjectNode otherFields, Iterable<Student> students)
+      throws IOException {
+    if (partitioning == null) {
+      throw new IllegalStateException("The shard layout is not set.");
+    }
+    int count = shardFiles.size();
+    List<List<Student>> partitions = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (Student student : students) {
+      partitions.get(shardOf(student, count)).add(student);
+    }
+    Files.createDirectories(target);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Path shardPath = target.resolve(shardFiles.get(i));
+      List<Student> partition = partitions.get(i);
+      ObjectNode fields = shardFields != null ? shardFields[i] : null;
+      tasks.add(
+          () -> {
+            try (RegistryFormat format = shardFormats.apply(shardPath)) {
+              format.write(shardPath, fields, partition);
+            }
+            return null;
+          });
+    }
+    runAll(tasks);
+    writeManifest(target, otherFields);
+  }
+
+  private int shardOf(Student student, int count) {
+    if (partitioning == Partitioning.HASH) {
+      return (student.getFacultyNumber().hashCode() & Integer.MAX_VALUE) % count;
+    }
+    return student.getProgram() != null ? student.getProgram().ordinal() : 0;
+  }
+
+  private void writeManifest(Path target, ObjectNode otherFields) throws IOException {
+    ObjectNode manifest = objectMapper.createObjectNode();
+    manifest.put(PARTITIONING_FIELD, partitioning.name());
+    ArrayNode files = manifest.putArray(SHARDS_FIELD);
+    shardFiles.forEach(files::add);
+    if (otherFields != null) {
+      otherFields
+          .fields()
+          .forEachRemaining(
+              field -> {
+                if (!JsonRegistryFile.STUDENTS_FIELD.equals(field.getKey())
+                    && !manifest.has(field.getKey())) {
+                  manifest.set(field.getKey(), field.getValue());
+                }
+              });
+    }
+    RegistryFiles.writeAtomically(
+        target.resolve(MANIFEST),
+        out ->
+            objectMapper
+                .writerWithDefaultPrettyPrinter()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(out, manifest));
+  }
+
+  /** Изпълнява задачите паралелно - по една нишка на ядро - и изчаква всички. */
+  private static void runAll(List<Callable<Void>> tasks) throws IOException {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+    List<Future<Void>> results;
+    try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+      results = executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing shards.", e);
+    }
+    IOException failure = null;
+    for (Future<Void> result : results) {
+      try {
+        result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while processing shards.", e);
+      } catch (ExecutionException e) {
+        IOException cause =
+            e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        if (failure == null) {
+          failure = cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (formats == null) {
+      return;
+    }
+    IOException failure = null;
+    for (RegistryFormat format : formats) {
+      try {
+        format.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    formats = null;
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package bg.tuvarna.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Буфериран изходен поток, в който могат да се вмъкват участъци от друг файл. Когато потокът
+ * пише във файл, участъците се копират направо между двата файла чрез FileChannel.transferTo,
+ * без да минават през паметта на програмата.
+ */
+final class SpliceOutputStream extends BufferedOutputStream {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** Каналът на целевия файл или null, ако потокът не пише във файл. */
+  private final FileChannel targetChannel;
+
+  SpliceOutputStream(OutputStream target) {
+    super(target, BUFFER_SIZE);
+    targetChannel = target instanceof FileOutputStream file ? file.getChannel() : null;
+  }
+
+  /**
+   * Копира участък от файл след вече записаните данни.
+   *
+   * @param source каналът на файла, от който се копира
+   * @param offset началото на участъка
+   * @param length дължината на участъка в байтове
+   * @throws IOException при грешка при четене или запис
+   */
+  void splice(FileChannel source, long offset, long length) throws IOException {
+    flush();
+    if (targetChannel != null) {
+      long position = offset;
+      long end = offset + length;
+      while (position < end) {
+        long transferred = source.transferTo(position, end - position, targetChannel);
+        if (transferred <= 0) {
+          throw new IOException("Unexpected end of the registry file.");
+        }
+        position += transferred;
+      }
+      return;
+    }
+    JsonRecordSource.copy(source, offset, length, this);
+  }
+}
@@ -0,0 +1,577 @@
+package bg.tuvarna.repositories;
+
+import bg.tuvarna.metrics.HitRatio;
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Хранилище, което пази студентите по колони в масиви от примитивни типове вместо като обекти.
+ * Всеки студент е ред с пореден номер: името и факултетният номер са в масиви от низове, годината
+ * и групата - в int масиви, програмата и статусът - като поредни номера в byte масиви. Колоните
+ * са разделени на парчета от по {@value #CHUNK_ROWS} реда. Курсовете на студентите от едно парче
+ * са в общи масиви (дисциплина, оценка, флагове), а всеки ред пази началото и броя на своите
+ * курсове. Търсенето по факултетен номер е през хеш таблица с отворено адресиране от номера на
+ * редове.
+ *
+ * <p>При много студенти това спестява заглавките на обектите и указателите между тях. Обектите
+ * Student се създават при поискване и са копия на реда, затова промените по тях се отразяват в
+ * хранилището едва при {@link #save(Student)} - както изисква и договорът на
+ * {@link StudentRepository}. Вторичните индекси се заменят с последователно обхождане на
+ * колоните, а резултатите са в реда на добавяне, както при основното хранилище.
+ * Студентите не пазят връзка към записа си във файла, затова при запис всички се сериализират.
+ *
+ * <p>Колоните се пазят от едно заключване за четене и запис. Поредица от четене, промяна и запис
+ * за един студент се сериализира чрез {@link #lockFor(String)}, както при основното хранилище.
+ *
+ * <p>Снимката ({@link #snapshot()}) споделя парчетата с хранилището. Първата промяна след нея
+ * копира само списъка с парчета, а всяко парче се копира при първата промяна на ред от него
+ * (copy-on-write), както при {@link StudentVector}. Така запис след снимка копира едно парче, а
+ * не всички колони, а следващите промени в същото парче до новата снимка са на място.
+ */
+public class ColumnarStudentRepository implements StudentRepository {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int CHUNK_BITS = 10;
+  private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+  private static final int NO_VALUE = Integer.MIN_VALUE;
+  private static final byte NO_ORDINAL = -1;
+  private static final byte FLAG_GRADED = 1;
+  private static final byte FLAG_ENROLLED = 2;
+  /** Допълнителни места за курсове при преместване на курсовете на студент. */
+  private static final int COURSE_SLACK = 2;
+  private static final Program[] PROGRAMS = Program.values();
+  private static final Status[] STATUSES = Status.values();
+  private static final Discipline[] DISCIPLINES = Discipline.values();
+
+  private final ReentrantReadWriteLock columnsLock = new ReentrantReadWriteLock();
+  /** Заключвания за промени по студентите. */
+  private final LockStripes locks = new LockStripes();
+  /** Търсенията по факултетен номер. */
+  private final HitRatio facultyNumberLookups = new HitRatio();
+  /** Търсенията по програма и година. */
+  private final HitRatio programYearLookups = new HitRatio();
+
+  private Columns columns = new Columns(0);
+  /** Дали списъкът с парчета е споделен със снимка и трябва да се копира преди промяна. */
+  private boolean shared;
+
+  /** Хеш таблица: факултетен номер -> номер на реда + 1; 0 означава празно място. */
+  private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+  /**
+   * Колоните на всички редове, разделени на парчета от по {@value #CHUNK_ROWS} реда. Ред с номер
+   * {@code row} е на позиция {@code row & CHUNK_MASK} в парче {@code row >>> CHUNK_BITS}.
+   */
+  private static final class Columns {
+    /** Поколението на парчетата, които могат да се променят на място. */
+    final long generation;
+    Chunk[] chunks;
+    /** Брой на редовете. */
+    int size;
+
+    Columns(long generation) {
+      this.generation = generation;
+      chunks = new Chunk[] {new Chunk(generation, INITIAL_CAPACITY)};
+    }
+
+    private Columns(Columns other) {
+      generation = other.generation + 1;
+      chunks = other.chunks.clone();
+      size = other.size;
+    }
+
+    /**
+     * Копира само списъка с парчета и започва ново поколение. Парчетата остават общи с
+     * оригинала, докато не бъдат променени.
+     */
+    Columns copy() {
+      return new Columns(this);
+    }
+
+    Chunk chunk(int row) {
+      return chunks[row >>> CHUNK_BITS];
+    }
+
+    /** Връща парчето с даден ред, като преди това го копира, ако е от по-старо поколение. */
+    Chunk editable(int row) {
+      int index = row >>> CHUNK_BITS;
+      Chunk chunk = chunks[index];
+      if (chunk.generation != generation) {
+        chunk = chunk.copy(generation);
+        chunks[index] = chunk;
+      }
+      return chunk;
+    }
+
+    String facultyNumber(int row) {
+      return chunk(row).facultyNumbers[row & CHUNK_MASK];
+    }
+
+    /** Създава обект Student с данните от даден ред. */
+    Student view(int row) {
+      return chunk(row).view(row & CHUNK_MASK);
+    }
+
+    /** Добавя нов празен ред за даден факултетен номер. */
+    int addRow(String fn) {
+      int index = size >>> CHUNK_BITS;
+      if (index == chunks.length) {
+        chunks = Arrays.copyOf(chunks, index * 2);
+      }
+      if (chunks[index] == null) {
+        chunks[index] = new Chunk(generation, CHUNK_ROWS);
+      }
+      editable(size).addRow(fn);
+      return size++;
+    }
+
+    /** Връща студентите от редовете, които отговарят на условие, в реда на добавяне. */
+    List<Student> scan(RowPredicate matches) {
+      List<Student> students = new ArrayList<>();
+      for (int first = 0; first < size; first += CHUNK_ROWS) {
+        Chunk chunk = chunk(first);
+        for (int row = 0; row < chunk.size; row++) {
+          if (matches.test(chunk, row)) {
+            students.add(chunk.view(row));
+          }
+        }
+      }
+      return students;
+    }
+
+    List<Student> scanProgramAndYear(Program program, int year) {
+      byte ordinal = (byte) program.ordinal();
+      return scan((chunk, row) -> chunk.programs[row] == ordinal && chunk.years[row] == year);
+    }
+
+    List<Student> scanDiscipline(Discipline discipline) {
+      int bit = 1 << discipline.ordinal();
+      return scan((chunk, row) -> (chunk.enrolledMasks[row] & bit) != 0);
+    }
+  }
+
+  /** Условие за ред от парче. */
+  private interface RowPredicate {
+    boolean test(Chunk chunk, int row);
+  }
+
+  /**
+   * Колоните на до {@value #CHUNK_ROWS} поредни реда заедно с техните курсове. Номерата на
+   * редовете в парчето започват от 0.
+   */
+  private static final class Chunk {
+    /** Поколението на парчето. Парчетата от по-старо поколение може да са споделени със снимка. */
+    final long generation;
+    /** Брой на редовете. */
+    int size;
+    String[] names;
+    String[] facultyNumbers;
+    int[] years;
+    int[] groups;
+    byte[] programs;
+    byte[] statuses;
+    /** Битова маска (по пореден номер на дисциплината) на записаните дисциплини. */
+    int[] enrolledMasks;
+
+    /** Началото на курсовете на всеки ред в масивите с курсове. */
+    int[] courseStarts;
+    byte[] courseCounts;
+    byte[] courseCapacities;
+    /** Заетата част от масивите с курсове. */
+    int courseSize;
+    /** Места в масивите с курсове, които вече не принадлежат на никой ред. */
+    int wastedCourses;
+    byte[] courseDisciplines;
+    double[] courseGrades;
+    byte[] courseFlags;
+
+    Chunk(long generation, int capacity) {
+      this.generation = generation;
+      names = new String[capacity];
+      facultyNumbers = new String[capacity];
+      years = new int[capacity];
+      groups = new int[capacity];
+      programs = new byte[capacity];
+      statuses = new byte[capacity];
+      enrolledMasks = new int[capacity];
+      courseStarts = new int[capacity];
+      courseCounts = new byte[capacity];
+      courseCapacities = new byte[capacity];
+      courseDisciplines = new byte[capacity];
+      courseGrades = new double[capacity];
+      courseFlags = new byte[capacity];
+    }
+
+    private Chunk(long generation, Chunk other) {
+      this.generation = generation;
+      size = other.size;
+      names = other.names.clone();
+      facultyNumbers = other.facultyNumbers.clone();
+      years = other.years.clone();
+      groups = other.groups.clone();
+      programs = other.programs.clone();
+      statuses = other.statuses.clone();
+      enrolledMasks = other.enrolledMasks.clone();
+      courseStarts = other.courseStarts.clone();
+      courseCounts = other.courseCounts.clone();
+      courseCapacities = other.courseCapacities.clone();
+      courseSize = other.courseSize;
+      wastedCourses = other.wastedCourses;
+      courseDisciplines = other.courseDisciplines.clone();
+      courseGrades = other.courseGrades.clone();
+      courseFlags = other.courseFlags.clone();
+    }
+
+    Chunk copy(long generation) {
+      return new Chunk(generation, this);
+    }
+
+    /** Създава обект Student с данните от даден ред. */
+    Student view(int row) {
+      Student student = new Student();
+      student.setName(names[row]);
+      student.setFacultyNumber(facultyNumbers[row]);
+      student.setCurrentYear(years[row] == NO_VALUE ? null : years[row]);
+      student.setGroup(groups[row] == NO_VALUE ? null : groups[row]);
+      student.setProgram(programs[row] == NO_ORDINAL ? null : PROGRAMS[programs[row]]);
+      student.setStatus(statuses[row] == NO_ORDINAL ? null : STATUSES[statuses[row]]);
+      int start = courseStarts[row];
+      for (int i = start; i < start + courseCounts[row]; i++) {
+        Course course = new Course();
+        course.setDiscipline(DISCIPLINES[courseDisciplines[i]]);
+        course.setGrade(courseGrades[i]);
+        course.setGraded((courseFlags[i] & FLAG_GRADED) != 0);
+        course.setEnrolled((courseFlags[i] & FLAG_ENROLLED) != 0);
+        student.addCourse(course);
+      }
+      return student;
+    }
+
+    /**
+     * Записва курсовете на даден ред. Ако не се побират на досегашното място, се преместват в
+     * края на масивите с курсове, а старото място се отбелязва като неизползвано.
+     */
+    void writeCourses(int row, Collection<Course> courses) {
+      int count = courses.size();
+      if (count > courseCapacities[row]) {
+        wastedCourses += courseCapacities[row];
+        // При първия запис мястото е точно колкото курсовете, а при преместване - с резерв
+        int capacity =
+            courseCapacities[row] == 0 ? count : Math.min(count + COURSE_SLACK, DISCIPLINES.length);
+        if (courseSize + capacity > courseDisciplines.length) {
+          growCourses(capacity);
+        }
+        courseStarts[row] = courseSize;
+        courseCapacities[row] = (byte) capacity;
+        courseSize += capacity;
+      }
+      int i = courseStarts[row];
+      int enrolledMask = 0;
+      for (Course course : courses) {
+        courseDisciplines[i] = (byte) course.getDiscipline().ordinal();
+        courseGrades[i] = course.getGrade();
+        courseFlags[i] =
+            (byte)
+                ((course.isGraded() ? FLAG_GRADED : 0) | (course.isEnrolled() ? FLAG_ENROLLED : 0));
+        if (course.isEnrolled()) {
+          enrolledMask |= 1 << course.getDiscipline().ordinal();
+        }
+        i++;
+      }
+      courseCounts[row] = (byte) count;
+      enrolledMasks[row] = enrolledMask;
+    }
+
+    /**
+     * Осигурява място за още курсове. Ако поне половината от масивите е неизползвана, курсовете
+     * се уплътняват, вместо масивите да се увеличават.
+     */
+    private void growCourses(int needed) {
+      int used = courseSize - wastedCourses;
+      int capacity = Math.max(courseDisciplines.length, INITIAL_CAPACITY);
+      if (wastedCourses < courseSize / 2) {
+        capacity *= 2;
+      }
+      while (used + needed > capacity) {
+        capacity *= 2;
+      }
+      byte[] disciplines = new byte[capacity];
+      double[] grades = new double[capacity];
+      byte[] flags = new byte[capacity];
+      int next = 0;
+      for (int row = 0; row < size; row++) {
+        int start = courseStarts[row];
+        int rowCapacity = courseCapacities[row];
+        System.arraycopy(courseDisciplines, start, disciplines, next, rowCapacity);
+        System.arraycopy(courseGrades, start, grades, next, rowCapacity);
+        System.arraycopy(courseFlags, start, flags, next, rowCapacity);
+        courseStarts[row] = next;
+        next += rowCapacity;
+      }
+      courseDisciplines = disciplines;
+      courseGrades = grades;
+      courseFlags = flags;
+      courseSize = next;
+      wastedCourses = 0;
+    }
+
+    /** Добавя нов празен ред за даден факултетен номер. */
+    int addRow(String fn) {
+      if (size == names.length) {
+        int capacity = Math.min(size * 2, CHUNK_ROWS);
+        names = Arrays.copyOf(names, capacity);
+        facultyNumbers = Arrays.copyOf(facultyNumbers, capacity);
+        years = Arrays.copyOf(years, capacity);
+        groups = Arrays.copyOf(groups, capacity);
+        programs = Arrays.copyOf(programs, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        enrolledMasks = Arrays.copyOf(enrolledMasks, capacity);
+        courseStarts = Arrays.copyOf(courseStarts, capacity);
+        courseCounts = Arrays.copyOf(courseCounts, capacity);
+        courseCapacities = Arrays.copyOf(courseCapacities, capacity);
+      }
+      int row = size++;
+      facultyNumbers[row] = fn;
+      courseStarts[row] = courseSize;
+      courseCounts[row] = 0;
+      courseCapacities[row] = 0;
+      return row;
+    }
+  }
+
+  /** Снимка, която чете споделените колони. */
+  private static final class ColumnsSnapshot extends StudentSnapshot {
+    private final Columns columns;
+
+    ColumnsSnapshot(Columns columns) {
+      this.columns = columns;
+    }
+
+    @Override
+    public Student get(int index) {
+      if (index < 0 || index >= columns.size) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      return columns.view(index);
+    }
+
+    @Override
+    public int size() {
+      return columns.size;
+    }
+
+    @Override
+    public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+      return columns.scanProgramAndYear(program, year);
+    }
+
+    @Override
+    public void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+      columns.scanDiscipline(discipline).forEach(action);
+    }
+  }
+
+  @Override
+  public Lock lockFor(String fn) {
+    return locks.lockFor(fn);
+  }
+
+  @Override
+  public void save(Student student) {
+    String fn = student.getFacultyNumber();
+    Lock lock = lockFor(fn);
+    lock.lock();
+    columnsLock.writeLock().lock();
+    try {
+      if (shared) {
+        columns = columns.copy();
+        shared = false;
+      }
+      Columns c = columns;
+      int row = find(fn);
+      if (row < 0) {
+        row = c.addRow(fn);
+        if (c.size * 2 > slots.length) {
+          rehash(slots.length * 2);
+        } else {
+          insert(row);
+        }
+      }
+      Chunk chunk = c.editable(row);
+      row &= CHUNK_MASK;
+      chunk.names[row] = student.getName();
+      chunk.years[row] = student.getCurrentYear() == null ? NO_VALUE : student.getCurrentYear();
+      chunk.groups[row] = student.getGroup() == null ? NO_VALUE : student.getGroup();
+      chunk.programs[row] =
+          student.getProgram() == null ? NO_ORDINAL : (byte) student.getProgram().ordinal();
+      chunk.statuses[row] =
+          student.getStatus() == null ? NO_ORDINAL : (byte) student.getStatus().ordinal();
+      chunk.writeCourses(row, student.getCourses());
+    } finally {
+      columnsLock.writeLock().unlock();
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Student findByFacultyNumber(String fn) {
+    columnsLock.readLock().lock();
+    try {
+      int row = find(fn);
+      facultyNumberLookups.record(row >= 0);
+      return row < 0 ? null : columns.view(row);
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+  }
+
+  /** Студентите се създават при всяко търсене, затова не е нужно допълнително копие. */
+  @Override
+  public Student findForUpdate(String fn) {
+    return findByFacultyNumber(fn);
+  }
+
+  @Override
+  public boolean existsByFacultyNumber(String fn) {
+    columnsLock.readLock().lock();
+    try {
+      boolean exists = find(fn) >= 0;
+      facultyNumberLookups.record(exists);
+      return exists;
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+    List<Student> students;
+    columnsLock.readLock().lock();
+    try {
+      students = columns.scanProgramAndYear(program, year);
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+    programYearLookups.record(!students.isEmpty());
+    return students;
+  }
+
+  @Override
+  public List<Student> findByStatus(Status status) {
+    byte ordinal = (byte) status.ordinal();
+    columnsLock.readLock().lock();
+    try {
+      return columns.scan((chunk, row) -> chunk.statuses[row] == ordinal);
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Student> findByDiscipline(Discipline discipline) {
+    columnsLock.readLock().lock();
+    try {
+      return columns.scanDiscipline(discipline);
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Прави снимка, която споделя колоните с хранилището. Студентите в нея се създават един по един
+   * при обхождането.
+   *
+   * @return снимката.
+   */
+  @Override
+  public StudentSnapshot snapshot() {
+    columnsLock.writeLock().lock();
+    try {
+      shared = true;
+      return new ColumnsSnapshot(columns);
+    } finally {
+      columnsLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public HitRatio getFacultyNumberLookups() {
+    return facultyNumberLookups;
+  }
+
+  @Override
+  public HitRatio getProgramYearLookups() {
+    return programYearLookups;
+  }
+
+  @Override
+  public int count() {
+    columnsLock.readLock().lock();
+    try {
+      return columns.size;
+    } finally {
+      columnsLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public StudentRepository createEmpty() {
+    return new ColumnarStudentRepository();
+  }
+
+  @Override
+  public void clear() {
+    columnsLock.writeLock().lock();
+    try {
+      columns = new Columns(0);
+      shared = false;
+      Arrays.fill(slots, 0);
+    } finally {
+      columnsLock.writeLock().unlock();
+    }
+  }
+
+  /** Търси реда на студент по факултетен номер. */
+  private int find(String fn) {
+    int mask = slots.length - 1;
+    for (int slot = hash(fn) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int row = slots[slot] - 1;
+      if (columns.facultyNumber(row).equals(fn)) {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  private void insert(int row) {
+    int mask = slots.length - 1;
+    int slot = hash(columns.facultyNumber(row)) & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = row + 1;
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    for (int row = 0; row < columns.size; row++) {
+      insert(row);
+    }
+  }
+
+  private static int hash(String fn) {
+    int h = fn.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
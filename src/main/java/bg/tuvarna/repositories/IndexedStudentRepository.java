@@ -0,0 +1,325 @@
+package bg.tuvarna.repositories;
+
+import bg.tuvarna.metrics.HitRatio;
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+/**
+ * Класът IndexedStudentRepository е хранилище, което пази студентите като обекти.
+ * Студентите се индексират по факултетен номер, като редът на добавяне се запазва.
+ * Поддържат се и вторични индекси по програма и година, по статус и по записана дисциплина.
+ * Те пазят студентите по позицията им в реда на добавяне, затова справките ги връщат в този ред.
+ * Индексите се обновяват при всяко извикване на {@link #save(Student)}, затова след промяна
+ * на студент той трябва да бъде записан отново.
+ *
+ * <p>Студентите с отложено зареждане на курсовете се индексират по дисциплина едва при първото
+ * търсене по дисциплина, за да не се зареждат курсовете на всички студенти при отваряне.
+ *
+ * <p>Хранилището е нишково-безопасно. Четенията не заключват, а промените по един студент се
+ * сериализират чрез заключване по факултетен номер ({@link #lockFor(String)}). Поредица от
+ * четене, промяна и запис трябва да се изпълнява, докато е взето заключването за студента.
+ * Студентът за промяна се взема с {@link #findForUpdate(String)}, който връща копие, така че
+ * записаните студенти не се променят и могат да се четат без заключване.
+ *
+ * <p>{@link #snapshot()} връща снимка на всички студенти към даден момент, без да ги копира.
+ * Дългите справки и записът във файл работят върху снимка, докато промените продължават.
+ */
+public class IndexedStudentRepository implements StudentRepository {
+  /** Първичен индекс: факултетен номер -> студент. */
+  private final ConcurrentMap<String, Student> studentsByFacultyNumber =
+      new ConcurrentHashMap<>();
+  /** Студентите в реда на добавяне; от него се правят снимките. */
+  private final StudentVector insertionOrder = new StudentVector();
+  /** Позицията на всеки студент в insertionOrder. */
+  private final ConcurrentMap<String, Integer> rows = new ConcurrentHashMap<>();
+  /** Ключовете, под които всеки студент е индексиран в момента. */
+  private final ConcurrentMap<String, IndexKey> indexKeys = new ConcurrentHashMap<>();
+  /** Вторичен индекс: програма -> година -> позиция -> студент. */
+  private final Map<Program, ConcurrentMap<Integer, Map<Integer, Student>>>
+      studentsByProgramAndYear = new EnumMap<>(Program.class);
+  /** Вторичен индекс: статус -> позиция -> студент. */
+  private final Map<Status, Map<Integer, Student>> studentsByStatus =
+      new EnumMap<>(Status.class);
+  /** Вторичен индекс: дисциплина -> позиция -> записан студент. */
+  private final Map<Discipline, Map<Integer, Student>> studentsByDiscipline =
+      new EnumMap<>(Discipline.class);
+  /** Студентите с още незаредени курсове, които не са индексирани по дисциплина. */
+  private final Set<String> unindexedByDiscipline = ConcurrentHashMap.newKeySet();
+  /** Заключвания за промени по студентите. */
+  private final LockStripes locks = new LockStripes();
+  /** Търсенията по факултетен номер. */
+  private final HitRatio facultyNumberLookups = new HitRatio();
+  /** Търсенията по програма и година. */
+  private final HitRatio programYearLookups = new HitRatio();
+
+  public IndexedStudentRepository() {
+    for (Program program : Program.values()) {
+      studentsByProgramAndYear.put(program, new ConcurrentHashMap<>());
+    }
+    for (Status status : Status.values()) {
+      studentsByStatus.put(status, new ConcurrentSkipListMap<>());
+    }
+    for (Discipline discipline : Discipline.values()) {
+      studentsByDiscipline.put(discipline, new ConcurrentSkipListMap<>());
+    }
+  }
+
+  /**
+   * Стойностите на полетата, по които студентът е индексиран. Дисциплините са null, докато
+   * курсовете на студента не са заредени.
+   */
+  private record IndexKey(Program program, Integer year, Status status, Set<Discipline> disciplines) {
+    static IndexKey of(Student student) {
+      Set<Discipline> disciplines = null;
+      if (student.isCoursesLoaded()) {
+        disciplines = EnumSet.noneOf(Discipline.class);
+        for (Course course : student.getCourses()) {
+          if (course.isEnrolled()) {
+            disciplines.add(course.getDiscipline());
+          }
+        }
+      }
+      return new IndexKey(
+          student.getProgram(), student.getCurrentYear(), student.getStatus(), disciplines);
+    }
+  }
+
+  @Override
+  public Lock lockFor(String fn) {
+    return locks.lockFor(fn);
+  }
+  /**
+   * Добавя студент към хранилището. Ако вече има студент със същия факултетен номер, той се
+   * заменя (upsert), вместо да се добавя дубликат. Вторичните индекси се преизчисляват.
+   * Повторният запис на същия обект означава, че той е променен, затова връзката му към записа
+   * във файла, от който е прочетен, се премахва. Записаният обект не бива да се променя след
+   * това - промените се правят върху копие от {@link #findForUpdate(String)}.
+   *
+   * @param student обектът Student, който да бъде добавен.
+   */
+  @Override
+  public void save(Student student) {
+    String fn = student.getFacultyNumber();
+    Lock lock = lockFor(fn);
+    lock.lock();
+    try {
+      Student previous = studentsByFacultyNumber.put(fn, student);
+      if (previous == null) {
+        rows.put(fn, insertionOrder.append(student));
+      } else if (previous == student) {
+        // Студентът е променен, затова записът, от който е прочетен, вече не е актуален
+        student.detachStoredRecord();
+      } else {
+        insertionOrder.set(rows.get(fn), student);
+      }
+      reindex(fn, student, previous == student);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void reindex(String fn, Student student, boolean sameObject) {
+    IndexKey oldKey = indexKeys.get(fn);
+    IndexKey newKey = IndexKey.of(student);
+    if (sameObject && newKey.equals(oldKey)) {
+      return;
+    }
+    if (oldKey != null) {
+      unindex(fn, oldKey);
+    }
+    index(fn, student, newKey);
+    indexKeys.put(fn, newKey);
+  }
+
+  /**
+   * Индексира по дисциплина студентите, чиито курсове още не са заредени. Курсовете им се
+   * зареждат, затова това се прави едва при първото търсене по дисциплина.
+   */
+  private void indexPendingDisciplines() {
+    for (String fn : unindexedByDiscipline) {
+      Lock lock = lockFor(fn);
+      lock.lock();
+      try {
+        Student student = studentsByFacultyNumber.get(fn);
+        if (student != null) {
+          student.getCourses();
+          reindex(fn, student, true);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void index(String fn, Student student, IndexKey key) {
+    Integer row = rows.get(fn);
+    if (key.program() != null && key.year() != null) {
+      studentsByProgramAndYear
+          .get(key.program())
+          .computeIfAbsent(key.year(), y -> new ConcurrentSkipListMap<>())
+          .put(row, student);
+    }
+    if (key.status() != null) {
+      studentsByStatus.get(key.status()).put(row, student);
+    }
+    if (key.disciplines() == null) {
+      unindexedByDiscipline.add(fn);
+      return;
+    }
+    for (Discipline discipline : key.disciplines()) {
+      studentsByDiscipline.get(discipline).put(row, student);
+    }
+  }
+
+  private void unindex(String fn, IndexKey key) {
+    Integer row = rows.get(fn);
+    if (key.program() != null && key.year() != null) {
+      Map<Integer, Student> bucket = studentsByProgramAndYear.get(key.program()).get(key.year());
+      if (bucket != null) {
+        bucket.remove(row);
+      }
+    }
+    if (key.status() != null) {
+      studentsByStatus.get(key.status()).remove(row);
+    }
+    if (key.disciplines() == null) {
+      unindexedByDiscipline.remove(fn);
+      return;
+    }
+    for (Discipline discipline : key.disciplines()) {
+      studentsByDiscipline.get(discipline).remove(row);
+    }
+  }
+  @Override
+  public Student findByFacultyNumber(String fn) {
+    Student student = studentsByFacultyNumber.get(fn);
+    facultyNumberLookups.record(student != null);
+    return student;
+  }
+  @Override
+  public Student findForUpdate(String fn) {
+    Student student = findByFacultyNumber(fn);
+    return student != null ? student.copy() : null;
+  }
+  @Override
+  public boolean existsByFacultyNumber(String fn) {
+    boolean exists = studentsByFacultyNumber.containsKey(fn);
+    facultyNumberLookups.record(exists);
+    return exists;
+  }
+  @Override
+  public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+    Map<Integer, Student> bucket = studentsByProgramAndYear.get(program).get(year);
+    boolean hit = bucket != null && !bucket.isEmpty();
+    programYearLookups.record(hit);
+    return hit ? new ArrayList<>(bucket.values()) : new ArrayList<>();
+  }
+  @Override
+  public List<Student> findByStatus(Status status) {
+    return new ArrayList<>(studentsByStatus.get(status).values());
+  }
+  @Override
+  public List<Student> findByDiscipline(Discipline discipline) {
+    indexPendingDisciplines();
+    return new ArrayList<>(studentsByDiscipline.get(discipline).values());
+  }
+  @Override
+  public void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+    indexPendingDisciplines();
+    studentsByDiscipline.get(discipline).values().forEach(action);
+  }
+
+  /**
+   * Прави снимка на хранилището за константно време. Снимката не се променя при по-късни промени
+   * в хранилището.
+   *
+   * @return снимката.
+   */
+  @Override
+  public StudentSnapshot snapshot() {
+    return new Snapshot(insertionOrder.snapshot());
+  }
+
+  /**
+   * Снимка, която при търсене по дисциплина използва индекса на хранилището. Записването в
+   * дисциплина не се отменя, затова всеки студент, записан в дисциплината към момента на
+   * снимката, е и в индекса; проверява се само състоянието му в снимката.
+   */
+  private class Snapshot extends StudentSnapshot {
+    private final StudentSnapshot students;
+
+    Snapshot(StudentSnapshot students) {
+      this.students = students;
+    }
+
+    @Override
+    public Student get(int index) {
+      return students.get(index);
+    }
+
+    @Override
+    public int size() {
+      return students.size();
+    }
+
+    @Override
+    public void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+      indexPendingDisciplines();
+      for (int row : studentsByDiscipline.get(discipline).keySet()) {
+        if (row >= students.size()) {
+          continue;
+        }
+        Student student = students.get(row);
+        if (isEnrolled(student, discipline)) {
+          action.accept(student);
+        }
+      }
+    }
+  }
+
+  @Override
+  public HitRatio getFacultyNumberLookups() {
+    return facultyNumberLookups;
+  }
+
+  @Override
+  public HitRatio getProgramYearLookups() {
+    return programYearLookups;
+  }
+
+  @Override
+  public int count() {
+    return studentsByFacultyNumber.size();
+  }
+
+  @Override
+  public StudentRepository createEmpty() {
+    return new IndexedStudentRepository();
+  }
+
+  @Override
+  public void clear() {
+    studentsByFacultyNumber.clear();
+    insertionOrder.clear();
+    rows.clear();
+    indexKeys.clear();
+    unindexedByDiscipline.clear();
+    studentsByProgramAndYear.values().forEach(Map::clear);
+    studentsByStatus.values().forEach(Map::clear);
+    studentsByDiscipline.values().forEach(Map::clear);
+  }
+}
@@ -0,0 +1,25 @@
+package bg.tuvarna.repositories;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Заключвания за промени по студентите, между които факултетните номера се разпределят по хеш.
+ * Използва се от хранилищата за {@link StudentRepository#lockFor(String)}.
+ */
+final class LockStripes {
+  /** Брой на заключванията, между които се разпределят факултетните номера. */
+  private static final int STRIPES = 64;
+
+  private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+  LockStripes() {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  Lock lockFor(String fn) {
+    return locks[(fn.hashCode() & Integer.MAX_VALUE) % STRIPES];
+  }
+}
@@ -0,0 +1,355 @@
+package bg.tuvarna.repositories;
+
+import bg.tuvarna.metrics.HitRatio;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
+import bg.tuvarna.models.Student;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Хранилище, разделено на шардове. Всеки шард е отделно хранилище, което се зарежда от и
+ * записва в собствен файл, а това хранилище насочва всяка операция към шарда, който притежава
+ * студента. Студентите се разпределят по програма или по хеш на факултетния номер.
+ *
+ * <p>При разпределение по хеш шардът се изчислява от факултетния номер. При разпределение по
+ * програма нов студент се добавя в шарда на програмата си и остава в него и ако по-късно смени
+ * програмата си, затова притежателят на всеки студент се пази в таблица. Справките по програма и
+ * година, статус и дисциплина обединяват резултатите от шардовете един след друг, в реда на
+ * снимката.
+ *
+ * <p>За всеки шард се брои колко пъти е променян, така че при запис да се записват само
+ * шардовете, променени след последния запис.
+ *
+ * <p>Снимката се състои от снимките на шардовете, направени една след друга. Всеки студент е
+ * само в един шард, затова състоянието на всеки студент в нея е цялостно. Студентите в нея са
+ * подредени по шардове, а в рамките на шард - в реда на добавяне.
+ */
+public class ShardedStudentRepository implements StudentRepository {
+  /** Начинът, по който студентите се разпределят между шардовете. */
+  public enum Partitioning {
+    /** По един шард за всяка програма, в реда на {@link Program#values()}. */
+    PROGRAM,
+    /** Шардът е остатъкът от хеша на факултетния номер при деление на броя шардове. */
+    HASH
+  }
+
+  private final Partitioning partitioning;
+  private final StudentRepository[] shards;
+  /** При разпределение по програма: факултетен номер -> шард, който притежава студента. */
+  private final ConcurrentMap<String, Integer> owners = new ConcurrentHashMap<>();
+  /** Броят промени във всеки шард. */
+  private final AtomicLongArray modifications;
+  /** Броят промени във всеки шард към последния му запис. */
+  private final AtomicLongArray savedModifications;
+  /** Заключвания за промени по студентите. */
+  private final LockStripes locks = new LockStripes();
+  /** Търсенията по факултетен номер. */
+  private final HitRatio facultyNumberLookups = new HitRatio();
+  /** Търсенията по програма и година. */
+  private final HitRatio programYearLookups = new HitRatio();
+
+  /**
+   * @param partitioning начинът на разпределение
+   * @param shardCount броят на шардовете; при разпределение по програма - броят на програмите
+   * @param shardFactory създава празно хранилище за всеки шард
+   */
+  public ShardedStudentRepository(
+      Partitioning partitioning, int shardCount, Supplier<StudentRepository> shardFactory) {
+    if (shardCount < 1
+        || partitioning == Partitioning.PROGRAM && shardCount != Program.values().length) {
+      throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+    }
+    this.partitioning = partitioning;
+    shards = new StudentRepository[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = shardFactory.get();
+    }
+    modifications = new AtomicLongArray(shardCount);
+    savedModifications = new AtomicLongArray(shardCount);
+  }
+
+  public Partitioning getPartitioning() {
+    return partitioning;
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Връща хранилището на даден шард, например за да се зареди в него файлът на шарда. След
+   * зареждането трябва да се извика {@link #markLoaded(int)}.
+   *
+   * @param shard номерът на шарда
+   * @return хранилището на шарда
+   */
+  public StudentRepository getShard(int shard) {
+    return shards[shard];
+  }
+
+  /**
+   * Връща шарда, в който се добавя нов студент.
+   *
+   * @param student студентът
+   * @return номерът на шарда
+   */
+  public int shardFor(Student student) {
+    if (partitioning == Partitioning.HASH) {
+      return hashShard(student.getFacultyNumber());
+    }
+    return student.getProgram() != null ? student.getProgram().ordinal() : 0;
+  }
+
+  private int hashShard(String fn) {
+    return (fn.hashCode() & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /** Връща шарда, който притежава студента, или -1, ако няма такъв студент. */
+  private int ownerOf(String fn) {
+    if (partitioning == Partitioning.HASH) {
+      return hashShard(fn);
+    }
+    Integer shard = owners.get(fn);
+    return shard != null ? shard : -1;
+  }
+
+  /**
+   * Отбелязва, че шард е зареден директно в хранилището му: студентите му се регистрират като
+   * негови, а шардът се счита за непроменен. Шардовете могат да се зареждат паралелно.
+   *
+   * @param shard номерът на шарда
+   */
+  public void markLoaded(int shard) {
+    if (partitioning == Partitioning.PROGRAM) {
+      for (Student student : shards[shard].snapshot()) {
+        owners.putIfAbsent(student.getFacultyNumber(), shard);
+      }
+    }
+    savedModifications.set(shard, modifications.get(shard));
+  }
+
+  /**
+   * Връща брояча на промените в шард. Стойността се взема преди снимката на шарда, която се
+   * записва, и се подава на {@link #markSaved(int, long)} след успешния запис.
+   *
+   * @param shard номерът на шарда
+   * @return броят промени в шарда досега
+   */
+  public long getModifications(int shard) {
+    return modifications.get(shard);
+  }
+
+  /**
+   * Проверява дали шардът е променян след последния си запис или зареждане.
+   *
+   * @param shard номерът на шарда
+   * @return true, ако шардът трябва да се запише
+   */
+  public boolean isModified(int shard) {
+    return modifications.get(shard) != savedModifications.get(shard);
+  }
+
+  /**
+   * Отбелязва, че шардът е записан с промените до дадения брояч. Промените след него остават
+   * незаписани.
+   *
+   * @param shard номерът на шарда
+   * @param modificationCount броячът от {@link #getModifications(int)} преди записа
+   */
+  public void markSaved(int shard, long modificationCount) {
+    savedModifications.set(shard, modificationCount);
+  }
+
+  @Override
+  public Lock lockFor(String fn) {
+    return locks.lockFor(fn);
+  }
+
+  /**
+   * Добавя или заменя студент в шарда, който го притежава. Нов студент се добавя в шарда според
+   * разпределението.
+   *
+   * @param student обектът Student, който да бъде добавен.
+   */
+  @Override
+  public void save(Student student) {
+    String fn = student.getFacultyNumber();
+    Lock lock = lockFor(fn);
+    lock.lock();
+    try {
+      int shard = ownerOf(fn);
+      if (shard < 0) {
+        shard = shardFor(student);
+        owners.put(fn, shard);
+      }
+      shards[shard].save(student);
+      modifications.incrementAndGet(shard);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Student findByFacultyNumber(String fn) {
+    int shard = ownerOf(fn);
+    Student student = shard >= 0 ? shards[shard].findByFacultyNumber(fn) : null;
+    facultyNumberLookups.record(student != null);
+    return student;
+  }
+
+  @Override
+  public Student findForUpdate(String fn) {
+    int shard = ownerOf(fn);
+    Student student = shard >= 0 ? shards[shard].findForUpdate(fn) : null;
+    facultyNumberLookups.record(student != null);
+    return student;
+  }
+
+  @Override
+  public boolean existsByFacultyNumber(String fn) {
+    int shard = ownerOf(fn);
+    boolean exists = shard >= 0 && shards[shard].existsByFacultyNumber(fn);
+    facultyNumberLookups.record(exists);
+    return exists;
+  }
+
+  @Override
+  public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+    List<Student> students = merge(shard -> shard.findByProgramAndCurrentYear(program, year));
+    programYearLookups.record(!students.isEmpty());
+    return students;
+  }
+
+  @Override
+  public List<Student> findByStatus(Status status) {
+    return merge(shard -> shard.findByStatus(status));
+  }
+
+  @Override
+  public List<Student> findByDiscipline(Discipline discipline) {
+    return merge(shard -> shard.findByDiscipline(discipline));
+  }
+
+  /** Обединява резултатите от всички шардове по реда на шардовете. */
+  private List<Student> merge(Function<StudentRepository, List<Student>> query) {
+    List<Student> students = null;
+    for (StudentRepository shard : shards) {
+      List<Student> found = query.apply(shard);
+      if (found.isEmpty()) {
+        continue;
+      }
+      if (students == null) {
+        students = found;
+      } else {
+        students.addAll(found);
+      }
+    }
+    return students != null ? students : new ArrayList<>();
+  }
+
+  @Override
+  public StudentSnapshot snapshot() {
+    StudentSnapshot[] parts = new StudentSnapshot[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      parts[i] = shards[i].snapshot();
+    }
+    return new Snapshot(parts);
+  }
+
+  /** Снимка, съставена от снимките на шардовете един след друг. */
+  private static final class Snapshot extends StudentSnapshot {
+    private final StudentSnapshot[] parts;
+    /** Началото на всеки шард в общата номерация; последният елемент е общият брой. */
+    private final int[] starts;
+
+    Snapshot(StudentSnapshot[] parts) {
+      this.parts = parts;
+      starts = new int[parts.length + 1];
+      for (int i = 0; i < parts.length; i++) {
+        starts[i + 1] = starts[i] + parts[i].size();
+      }
+    }
+
+    @Override
+    public Student get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      int part = Arrays.binarySearch(starts, index);
+      // При празни шардове има няколко равни начала - взема се последното от тях
+      if (part >= 0) {
+        while (starts[part + 1] == index) {
+          part++;
+        }
+      } else {
+        part = -part - 2;
+      }
+      return parts[part].get(index - starts[part]);
+    }
+
+    @Override
+    public int size() {
+      return starts[parts.length];
+    }
+
+    @Override
+    public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+      List<Student> students = new ArrayList<>();
+      for (StudentSnapshot part : parts) {
+        students.addAll(part.findByProgramAndCurrentYear(program, year));
+      }
+      return students;
+    }
+
+    @Override
+    public void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+      for (StudentSnapshot part : parts) {
+        part.forEachByDiscipline(discipline, action);
+      }
+    }
+  }
+
+  @Override
+  public HitRatio getFacultyNumberLookups() {
+    return facultyNumberLookups;
+  }
+
+  @Override
+  public HitRatio getProgramYearLookups() {
+    return programYearLookups;
+  }
+
+  @Override
+  public int count() {
+    int count = 0;
+    for (StudentRepository shard : shards) {
+      count += shard.count();
+    }
+    return count;
+  }
+
+  @Override
+  public StudentRepository createEmpty() {
+    return new ShardedStudentRepository(partitioning, shards.length, shards[0]::createEmpty);
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < shards.length; i++) {
+      shards[i].clear();
+      modifications.incrementAndGet(i);
+    }
+    owners.clear();
+  }
+}
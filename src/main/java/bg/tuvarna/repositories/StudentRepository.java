@@ -1,42 +1,81 @@
 package bg.tuvarna.repositories;
 
+import bg.tuvarna.metrics.HitRatio;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Status;
 import bg.tuvarna.models.Student;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
 /**
- * Класът StudentRepository създава хранилище за студенти.
- * Предоставя методи за добавяне, търсене и извличане на студенти.
+ * Хранилище за студенти. Предоставя методи за добавяне, търсене и извличане на студенти.
+ * Студентите се идентифицират по факултетен номер, а справките ги връщат в реда на добавяне.
+ * Реализации са {@link IndexedStudentRepository}, която пази обектите и вторични индекси,
+ * {@link ColumnarStudentRepository}, която пази студентите по колони, и
+ * {@link ShardedStudentRepository}, която разделя студентите между няколко хранилища.
+ *
+ * <p>Хранилищата са нишково-безопасни. Промените по един студент се сериализират чрез заключване
+ * по факултетен номер ({@link #lockFor(String)}). Поредица от четене, промяна и запис трябва да
+ * се изпълнява, докато е взето заключването за студента. Студентът за промяна се взема с
+ * {@link #findForUpdate(String)}, който връща копие, и промените се отразяват в хранилището едва
+ * при {@link #save(Student)}.
+ *
+ * <p>{@link #snapshot()} връща снимка на всички студенти към даден момент. Дългите справки и
+ * записът във файл работят върху снимка, докато промените продължават.
  */
-public class StudentRepository {
-  private final List<Student> studentList = new ArrayList<>();
+public interface StudentRepository {
+  /**
+   * Връща заключването, което пази промените по студента с даден факултетен номер. Заключването
+   * е reentrant, така че вложени операции върху същия студент не блокират.
+   *
+   * @param fn факултетен номер на студента.
+   * @return заключването за студента.
+   */
+  Lock lockFor(String fn);
+
   /**
-   * Добавя студент към списъка.
+   * Добавя студент към хранилището. Ако вече има студент със същия факултетен номер, той се
+   * заменя (upsert), вместо да се добавя дубликат. Записаният обект не бива да се променя след
+   * това - промените се правят върху копие от {@link #findForUpdate(String)}.
    *
    * @param student обектът Student, който да бъде добавен.
    */
-  public void save(Student student) {
-    studentList.add(student);
-  }
+  void save(Student student);
+
   /**
    * Търси студент по факултетен номер.
    *
    * @param fn факултетен номер на студента.
    * @return Връща студента, ако е намерен. В противен случай връща null.
    */
-  public Student findByFacultyNumber(String fn) {
-    for (Student student : studentList) {
-      if (student.getFacultyNumber().equals(fn)) {
-        return student;
-      }
-    }
-    return null;
-  }
+  Student findByFacultyNumber(String fn);
+
+  /**
+   * Търси студент по факултетен номер, за да бъде променен. Връща копие, което трябва да се
+   * запише с {@link #save(Student)}, докато е взето заключването за студента; дотогава
+   * справките и снимките виждат предишното му състояние.
+   *
+   * @param fn факултетен номер на студента.
+   * @return копие на студента или null, ако няма такъв студент.
+   */
+  Student findForUpdate(String fn);
+
+  /**
+   * Проверява дали съществува студент с даден факултетен номер.
+   *
+   * @param fn факултетен номер на студента.
+   * @return true, ако има такъв студент.
+   */
+  boolean existsByFacultyNumber(String fn);
+
   /**
    * Търси студенти по програма и текуща година.
    *
@@ -44,38 +83,167 @@ public class StudentRepository {
    * @param year текущата година на обучение.
    * @return Връща списък със студенти, които отговарят на критериите.
    */
-  public List<Student> findByProgramAndCurrentYear(String programName, int year) {
-    List<Student> foundStudents = new ArrayList<>();
-    for (Student student : studentList) {
-      if (student.getProgram().name().equals(programName) && student.getCurrentYear() == year) {
-        foundStudents.add(student);
-      }
+  default List<Student> findByProgramAndCurrentYear(String programName, int year) {
+    Program program;
+    try {
+      program = Program.valueOf(programName);
+    } catch (IllegalArgumentException e) {
+      return new ArrayList<>();
     }
-    return foundStudents;
+    return findByProgramAndCurrentYear(program, year);
+  }
+
+  /**
+   * Търси студенти по програма и текуща година.
+   *
+   * @param program програмата.
+   * @param year текущата година на обучение.
+   * @return Връща списък със студенти, които отговарят на критериите.
+   */
+  List<Student> findByProgramAndCurrentYear(Program program, int year);
+
+  /**
+   * Търси студенти по статус.
+   *
+   * @param status статусът на студента.
+   * @return Връща списък със студенти с дадения статус.
+   */
+  List<Student> findByStatus(Status status);
+
+  /**
+   * Търси студенти, записани в дадена дисциплина.
+   *
+   * @param discipline дисциплината.
+   * @return Връща списък със студенти, записани в дисциплината.
+   */
+  List<Student> findByDiscipline(Discipline discipline);
+
+  /**
+   * Обхожда студентите, записани в дадена дисциплина. Реализациите могат да го направят без да
+   * копират резултата.
+   *
+   * @param discipline дисциплината.
+   * @param action действието, което се изпълнява за всеки студент.
+   */
+  default void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+    findByDiscipline(discipline).forEach(action);
   }
+
   /**
-   * Извлича всички студенти.
+   * Извлича всички студенти в реда на добавянето им. Върнатата колекция е снимка към момента на
+   * извикването и не се променя при паралелни промени. Потоците над нея се разделят по позиции,
+   * така че паралелните потоци се разпределят равномерно между нишките.
    *
-   * @return Връща списък със всички студенти.
+   * @return Връща колекция със всички студенти.
    */
-  public List<Student> findAll() {
-    return studentList;
+  default Collection<Student> findAll() {
+    return snapshot();
   }
 
   /**
-   * Извлича всички студенти в JSON формат.
+   * Прави снимка на хранилището. Снимката не се променя при по-късни промени в хранилището.
    *
-   * @return Връща JsonNode със студенти.
+   * @return снимката.
    */
-  public JsonNode getStudentsJson() {
-    ObjectMapper objectMapper = new ObjectMapper();
-    ArrayNode studentsJsonArray = JsonNodeFactory.instance.arrayNode();
+  StudentSnapshot snapshot();
 
-    for (Student student : studentList) {
-      ObjectNode studentJson = objectMapper.valueToTree(student);
-      studentsJsonArray.add(studentJson);
-    }
+  /**
+   * Връща статистиката за търсенията по факултетен номер.
+   *
+   * @return броят търсения и делът на намерените студенти.
+   */
+  HitRatio getFacultyNumberLookups();
+
+  /**
+   * Връща статистиката за търсенията по програма и година.
+   *
+   * @return броят търсения и делът на непразните резултати.
+   */
+  HitRatio getProgramYearLookups();
+
+  /**
+   * Връща броя на студентите в хранилището.
+   *
+   * @return броят на студентите.
+   */
+  int count();
 
-    return studentsJsonArray;
+  /**
+   * Броят на студентите, засегнати от {@link #applyChanges(Iterable, Map)}.
+   *
+   * @param changed броят на студентите, чиито данни са заменени
+   * @param added броят на новите студенти
+   * @param missing броят на студентите, които липсват в новата версия и са запазени
+   */
+  record Changes(int changed, int added, int missing) {}
+
+  /**
+   * Прилага друга версия на регистъра, например прочетена наново след промяна на файла от друг
+   * процес. Новата версия се сравнява с предишната, а не с хранилището: записват се само новите
+   * студенти и тези, чиито отпечатъци ({@link Student#fingerprint()}) са различни от предишните.
+   * Така непазените промени по студенти, които не са променени в новата версия, се запазват.
+   * Непроменените студенти, които още са свързани със записите си във файла, се свързват със
+   * записите си в новата версия. Студентите от предишната версия, които липсват в новата, се
+   * запазват и се отделят от записите си, защото хранилището не поддържа премахване.
+   *
+   * @param students студентите от новата версия
+   * @param previous отпечатъците на студентите от предишната версия по факултетен номер
+   * @return броят на променените, добавените и липсващите студенти
+   */
+  default Changes applyChanges(Iterable<Student> students, Map<String, Long> previous) {
+    Set<String> present = new HashSet<>();
+    int changed = 0;
+    int added = 0;
+    for (Student student : students) {
+      String fn = student.getFacultyNumber();
+      present.add(fn);
+      Long fingerprint = previous.get(fn);
+      Lock lock = lockFor(fn);
+      lock.lock();
+      try {
+        Student current = findByFacultyNumber(fn);
+        if (current == null) {
+          save(student);
+          added++;
+        } else if (fingerprint == null || fingerprint != student.fingerprint()) {
+          save(student);
+          changed++;
+        } else if (current.getStoredRecord() != null) {
+          current.attachStoredRecord(student.getStoredRecord(), false);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    int missing = 0;
+    for (Student student : snapshot()) {
+      String fn = student.getFacultyNumber();
+      if (present.contains(fn)) {
+        continue;
+      }
+      if (student.getStoredRecord() != null) {
+        Lock lock = lockFor(fn);
+        lock.lock();
+        try {
+          student.detachStoredRecord();
+        } finally {
+          lock.unlock();
+        }
+      }
+      if (previous.containsKey(fn)) {
+        missing++;
+      }
+    }
+    return new Changes(changed, added, missing);
   }
+
+  /**
+   * Създава празно хранилище от същия вид, например за шардовете на разделен регистър.
+   *
+   * @return новото хранилище.
+   */
+  StudentRepository createEmpty();
+
+  /** Премахва всички студенти от хранилището. */
+  void clear();
 }
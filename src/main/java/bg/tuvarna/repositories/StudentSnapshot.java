@@ -0,0 +1,146 @@
+package bg.tuvarna.repositories;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Снимка на хранилището към определен момент. Съдържа студентите в реда на добавянето им, както
+ * са били, когато е направена снимката; по-късните промени в хранилището не се отразяват в нея.
+ * Снимката се прави без копиране на студентите, затова дълги справки и записи могат да работят
+ * върху нея, докато други нишки продължават да променят хранилището.
+ *
+ * <p>Студентите в снимката са само за четене.
+ */
+public abstract class StudentSnapshot extends AbstractCollection<Student> {
+  /**
+   * Връща студента на дадена позиция в реда на добавяне.
+   *
+   * @param index позицията, между 0 и size() - 1
+   * @return студентът
+   */
+  public abstract Student get(int index);
+
+  /**
+   * Търси студенти по програма и текуща година.
+   *
+   * @param program програмата.
+   * @param year текущата година на обучение.
+   * @return студентите в реда на добавяне.
+   */
+  public List<Student> findByProgramAndCurrentYear(Program program, int year) {
+    List<Student> students = new ArrayList<>();
+    for (Student student : this) {
+      if (student.getProgram() == program
+          && student.getCurrentYear() != null
+          && student.getCurrentYear() == year) {
+        students.add(student);
+      }
+    }
+    return students;
+  }
+
+  /**
+   * Обхожда студентите, записани в дадена дисциплина, в реда на добавяне.
+   *
+   * @param discipline дисциплината.
+   * @param action действието, което се изпълнява за всеки студент.
+   */
+  public void forEachByDiscipline(Discipline discipline, Consumer<Student> action) {
+    for (Student student : this) {
+      if (isEnrolled(student, discipline)) {
+        action.accept(student);
+      }
+    }
+  }
+
+  static boolean isEnrolled(Student student, Discipline discipline) {
+    Course course = student.getCourse(discipline);
+    return course != null && course.isEnrolled();
+  }
+
+  @Override
+  public Iterator<Student> iterator() {
+    return new Iterator<>() {
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        return index < size();
+      }
+
+      @Override
+      public Student next() {
+        if (index >= size()) {
+          throw new NoSuchElementException();
+        }
+        return get(index++);
+      }
+    };
+  }
+
+  /**
+   * Разделя снимката по позиции, така че паралелните потоци се разпределят равномерно между
+   * нишките.
+   */
+  @Override
+  public Spliterator<Student> spliterator() {
+    return new RangeSpliterator(0, size());
+  }
+
+  private final class RangeSpliterator implements Spliterator<Student> {
+    private int from;
+    private final int to;
+
+    RangeSpliterator(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Student> action) {
+      if (from >= to) {
+        return false;
+      }
+      action.accept(get(from++));
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Student> action) {
+      while (from < to) {
+        action.accept(get(from++));
+      }
+    }
+
+    @Override
+    public Spliterator<Student> trySplit() {
+      int middle = (from + to) >>> 1;
+      if (middle <= from) {
+        return null;
+      }
+      Spliterator<Student> prefix = new RangeSpliterator(from, middle);
+      from = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return to - from;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+  }
+}
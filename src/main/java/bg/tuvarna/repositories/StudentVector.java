@@ -0,0 +1,127 @@
+package bg.tuvarna.repositories;
+
+import bg.tuvarna.models.Student;
+
+/**
+ * Устойчив (persistent) масив от студенти - дърво с разклоненост 32, в чиито листа са
+ * студентите в реда на добавяне. Снимката е корена на дървото и броят на елементите, затова се
+ * прави за константно време. Възлите, създадени след последната снимка, се променят на място, а
+ * по-старите се копират при първата промяна (copy-on-write), така че никоя снимка не вижда
+ * по-късни промени. Всяка промяна копира най-много по един възел на ниво.
+ *
+ * <p>Промените и снимките се сериализират от монитора на обекта.
+ */
+final class StudentVector {
+  private static final int BITS = 5;
+  private static final int WIDTH = 1 << BITS;
+  private static final int MASK = WIDTH - 1;
+
+  /** Възел на дървото. Възлите от по-старо поколение може да са споделени със снимка. */
+  private static final class Node {
+    final long generation;
+    final Object[] slots;
+
+    Node(long generation, Object[] slots) {
+      this.generation = generation;
+      this.slots = slots;
+    }
+  }
+
+  /** Поколението на възлите, които могат да се променят на място. */
+  private long generation;
+  private Node root = new Node(0, new Object[WIDTH]);
+  /** Броят битове на индекса под корена. */
+  private int shift;
+  private int size;
+
+  /**
+   * Добавя студент в края.
+   *
+   * @param student студентът
+   * @return позицията на студента
+   */
+  synchronized int append(Student student) {
+    if (size == 1 << (shift + BITS)) {
+      Object[] slots = new Object[WIDTH];
+      slots[0] = root;
+      root = new Node(generation, slots);
+      shift += BITS;
+    }
+    store(size, student);
+    return size++;
+  }
+
+  /**
+   * Заменя студента на дадена позиция.
+   *
+   * @param index позицията
+   * @param student новият студент
+   */
+  synchronized void set(int index, Student student) {
+    store(index, student);
+  }
+
+  private void store(int index, Student student) {
+    root = editable(root);
+    Node node = root;
+    for (int level = shift; level > 0; level -= BITS) {
+      int slot = (index >>> level) & MASK;
+      Node child = (Node) node.slots[slot];
+      child = child == null ? new Node(generation, new Object[WIDTH]) : editable(child);
+      node.slots[slot] = child;
+      node = child;
+    }
+    node.slots[index & MASK] = student;
+  }
+
+  private Node editable(Node node) {
+    return node.generation == generation ? node : new Node(generation, node.slots.clone());
+  }
+
+  /**
+   * Прави снимка на текущото съдържание.
+   *
+   * @return снимката
+   */
+  synchronized StudentSnapshot snapshot() {
+    generation++;
+    return new Snapshot(root, shift, size);
+  }
+
+  /** Премахва всички студенти. */
+  synchronized void clear() {
+    generation++;
+    root = new Node(generation, new Object[WIDTH]);
+    shift = 0;
+    size = 0;
+  }
+
+  private static final class Snapshot extends StudentSnapshot {
+    private final Node root;
+    private final int shift;
+    private final int size;
+
+    Snapshot(Node root, int shift, int size) {
+      this.root = root;
+      this.shift = shift;
+      this.size = size;
+    }
+
+    @Override
+    public Student get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      Node node = root;
+      for (int level = shift; level > 0; level -= BITS) {
+        node = (Node) node.slots[(index >>> level) & MASK];
+      }
+      return (Student) node.slots[index & MASK];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,479 @@
+package bg.tuvarna.server;
+
+import bg.tuvarna.cli.CommandLineRunner;
+import bg.tuvarna.metrics.RegistryMetrics;
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.persistence.JsonCodec;
+import bg.tuvarna.repositories.StudentRepository;
+import bg.tuvarna.service.StudentService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Локален HTTP сървър, който предоставя операциите на {@link StudentService} като JSON API.
+ * Използва вградения в JDK HTTP сървър, а всяка заявка се обслужва от отделна виртуална нишка,
+ * така че много клиенти могат да работят едновременно, без блокиращите операции да заемат
+ * нишки на операционната система.
+ *
+ * <p>Справките четат директно от хранилището. Промените се изпълняват от услуга, създадена за
+ * заявката, така че съобщението ѝ се връща само на клиента, направил заявката. Запазването на
+ * файла изчаква текущите промени и спира новите, докато не завърши, за да не се изгуби промяна
+ * между записа на файла и изпразването на дневника.
+ *
+ * <p>Поддържани заявки (всички отговори са JSON):
+ *
+ * <pre>
+ * GET  /api/students?program=CS&amp;year=1   студентите от програма и година (printall)
+ * POST /api/students                      {"name", "program", "group", "facultyNumber"} (enroll)
+ * GET  /api/students/{fn}                 студентът (print)
+ * GET  /api/students/{fn}/report          отчет за студента (report)
+ * POST /api/students/{fn}/advance         също graduate, interrupt и resume
+ * POST /api/students/{fn}/change          {"option", "value"}
+ * POST /api/students/{fn}/courses         {"discipline"} (enrollin)
+ * POST /api/students/{fn}/grades          {"discipline", "grade"} (addgrade)
+ * GET  /api/protocols/{discipline}        протокол за дисциплина (protocol)
+ * GET  /api/stats                         метриките на регистъра (stats)
+ * POST /api/save                          запазва файла (save)
+ * </pre>
+ */
+public class RegistryServer {
+  /** Общата част от пътя на всички заявки. */
+  public static final String CONTEXT = "/api";
+
+  private static final int STATUS_OK = 200;
+  private static final int STATUS_BAD_REQUEST = 400;
+  private static final int STATUS_NOT_FOUND = 404;
+  private static final int STATUS_METHOD_NOT_ALLOWED = 405;
+  private static final int STATUS_UNPROCESSABLE = 422;
+  private static final int STATUS_SERVER_ERROR = 500;
+  /** Максималният брой чакащи връзки. */
+  private static final int BACKLOG = 1024;
+  private static final String NO_STUDENT = "No student found with this faculty number.";
+
+  private final CommandLineRunner runner;
+  private final StudentRepository studentRepository;
+  private final RegistryMetrics metrics;
+  private final ObjectMapper objectMapper = JsonCodec.shared().getObjectMapper();
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  /** Промените вземат заключването за четене, а запазването - за запис. */
+  private final ReadWriteLock saveLock = new ReentrantReadWriteLock();
+
+  /** Резултат от команда, която променя регистъра. */
+  record CommandResult(boolean ok, String message) {}
+
+  /** Отчет за студент: взетите дисциплини с оценките им и неоценените дисциплини. */
+  record StudentReport(
+      String name,
+      String facultyNumber,
+      Map<Discipline, Double> completed,
+      List<Discipline> ungraded,
+      double averageGrade) {}
+
+  /** Протокол за дисциплина: записаните студенти, групирани по програма и година. */
+  record Protocol(Discipline discipline, List<ProtocolGroup> groups) {}
+
+  record ProtocolGroup(Program program, int year, List<ProtocolEntry> students) {}
+
+  record ProtocolEntry(String facultyNumber, String name) {}
+
+  /** Грешка в заявката, която се връща на клиента с даден статус. */
+  private static final class RequestException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    RequestException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  /**
+   * Създава сървър за регистъра с отворен файл. Сървърът не приема заявки до {@link #start()}.
+   *
+   * @param runner регистърът с отворения файл
+   * @param address адресът, на който да слуша сървърът; порт 0 избира свободен порт
+   * @throws IOException ако адресът не може да бъде зает
+   */
+  public RegistryServer(CommandLineRunner runner, InetSocketAddress address) throws IOException {
+    this.runner = runner;
+    this.studentRepository = runner.getStudentRepository();
+    this.metrics = runner.getMetrics();
+    server = HttpServer.create(address, BACKLOG);
+    server.createContext(CONTEXT, this::handle);
+    server.setExecutor(executor);
+  }
+
+  /** Започва приемането на заявки. */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * Спира сървъра, като изчаква започнатите заявки да завършат.
+   *
+   * @param delaySeconds най-много колко секунди да се чака
+   */
+  public void stop(int delaySeconds) {
+    server.stop(delaySeconds);
+    executor.close();
+  }
+
+  /**
+   * Връща адреса, на който слуша сървърът.
+   *
+   * @return адресът
+   */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    List<String> path = segments(exchange.getRequestURI());
+    String command = commandName(method, path);
+    long started = System.nanoTime();
+    boolean failed = true;
+    int status;
+    Object body;
+    try {
+      body = route(exchange, method, path);
+      status =
+          body instanceof CommandResult result && !result.ok()
+              ? STATUS_UNPROCESSABLE
+              : STATUS_OK;
+      failed = false;
+    } catch (RequestException e) {
+      status = e.status;
+      body = new CommandResult(false, e.getMessage());
+      failed = false;
+    } catch (IllegalArgumentException e) {
+      // Невалидна стойност, например група, която не е число; в конзолата това е грешка в реда
+      status = STATUS_BAD_REQUEST;
+      body = new CommandResult(false, String.valueOf(e.getMessage()));
+    } catch (RuntimeException e) {
+      status = STATUS_SERVER_ERROR;
+      body = new CommandResult(false, String.valueOf(e.getMessage()));
+    }
+    try {
+      send(exchange, status, body);
+    } finally {
+      if (command != null) {
+        metrics.recordCommand(command, System.nanoTime() - started, failed);
+      }
+    }
+  }
+
+  /** Разделя декодирания път след /api на части. */
+  private static List<String> segments(URI uri) {
+    List<String> segments = new ArrayList<>();
+    for (String segment : uri.getPath().substring(CONTEXT.length()).split("/")) {
+      if (!segment.isEmpty()) {
+        segments.add(segment);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Връща името на командата от конзолата, която отговаря на заявката, за да се отчита в
+   * същите метрики. За непознати заявки връща null.
+   */
+  private static String commandName(String method, List<String> path) {
+    if (path.isEmpty()) {
+      return null;
+    }
+    boolean get = method.equals("GET");
+    return switch (path.get(0)) {
+      case "students" -> switch (path.size()) {
+        case 1 -> get ? "printall" : "enroll";
+        case 2 -> "print";
+        case 3 -> switch (path.get(2)) {
+          case "report" -> "report";
+          case "courses" -> "enrollin";
+          case "grades" -> "addgrade";
+          case "advance", "change", "graduate", "interrupt", "resume" -> path.get(2);
+          default -> null;
+        };
+        default -> null;
+      };
+      case "protocols" -> "protocol";
+      case "stats" -> "stats";
+      case "save" -> "save";
+      default -> null;
+    };
+  }
+
+  private Object route(HttpExchange exchange, String method, List<String> path)
+      throws IOException {
+    String resource = path.isEmpty() ? "" : path.get(0);
+    switch (resource) {
+      case "students" -> {
+        if (path.size() == 1) {
+          if (method.equals("GET")) {
+            return findByProgramAndYear(query(exchange.getRequestURI()));
+          }
+          requireMethod(method, "POST");
+          return enroll(readBody(exchange));
+        }
+        String fn = path.get(1);
+        if (path.size() == 2) {
+          requireMethod(method, "GET");
+          return find(fn);
+        }
+        if (path.size() == 3) {
+          return studentAction(exchange, method, fn, path.get(2));
+        }
+      }
+      case "protocols" -> {
+        if (path.size() == 2) {
+          requireMethod(method, "GET");
+          return protocol(path.get(1));
+        }
+      }
+      case "stats" -> {
+        requireMethod(method, "GET");
+        return metrics;
+      }
+      case "save" -> {
+        requireMethod(method, "POST");
+        return save();
+      }
+      default -> {}
+    }
+    throw new RequestException(STATUS_NOT_FOUND, "Unknown resource.");
+  }
+
+  private Object studentAction(HttpExchange exchange, String method, String fn, String action)
+      throws IOException {
+    if (action.equals("report")) {
+      requireMethod(method, "GET");
+      return report(fn);
+    }
+    requireMethod(method, "POST");
+    return switch (action) {
+      case "advance" -> execute(service -> service.advance(fn));
+      case "graduate" -> execute(service -> service.graduate(fn));
+      case "interrupt" -> execute(service -> service.interrupt(fn));
+      case "resume" -> execute(service -> service.resume(fn));
+      case "change" -> {
+        JsonNode body = readBody(exchange);
+        String option = requireText(body, "option");
+        String value = requireText(body, "value");
+        yield execute(service -> service.change(fn, option, value));
+      }
+      case "courses" -> {
+        String discipline = requireText(readBody(exchange), "discipline");
+        yield execute(service -> service.enrollIn(fn, discipline));
+      }
+      case "grades" -> {
+        JsonNode body = readBody(exchange);
+        String discipline = requireText(body, "discipline");
+        double grade = requireNumber(body, "grade");
+        yield execute(service -> service.addGrade(fn, discipline, grade));
+      }
+      default -> throw new RequestException(STATUS_NOT_FOUND, "Unknown resource.");
+    };
+  }
+
+  private CommandResult enroll(JsonNode body) {
+    String name = requireText(body, "name");
+    Program program = parse(Program.class, requireText(body, "program").toUpperCase());
+    int group = (int) requireNumber(body, "group");
+    String fn = requireText(body, "facultyNumber");
+    return execute(service -> service.enrollStudent(name, program, group, fn));
+  }
+
+  /**
+   * Изпълнява промяна чрез услуга, чиито съобщения се събират за отговора. Промяната не
+   * започва, докато файлът се запазва.
+   */
+  private CommandResult execute(Predicate<StudentService> command) {
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    StudentService service =
+        runner.createService(new PrintStream(messages, true, StandardCharsets.UTF_8));
+    boolean ok;
+    saveLock.readLock().lock();
+    try {
+      ok = command.test(service);
+    } finally {
+      saveLock.readLock().unlock();
+    }
+    return new CommandResult(ok, messages.toString(StandardCharsets.UTF_8).strip());
+  }
+
+  private CommandResult save() {
+    saveLock.writeLock().lock();
+    try {
+      return runner.save()
+          ? new CommandResult(true, "Data saved successfully.")
+          : new CommandResult(false, "An error occurred while saving the file.");
+    } finally {
+      saveLock.writeLock().unlock();
+    }
+  }
+
+  private Student find(String fn) {
+    Student student = studentRepository.findByFacultyNumber(fn);
+    if (student == null) {
+      throw new RequestException(STATUS_NOT_FOUND, NO_STUDENT);
+    }
+    return student;
+  }
+
+  private List<Student> findByProgramAndYear(Map<String, String> query) {
+    String program = query.get("program");
+    String year = query.get("year");
+    if (program == null || year == null) {
+      throw new RequestException(
+          STATUS_BAD_REQUEST, "Query parameters program and year are required.");
+    }
+    try {
+      return studentRepository.findByProgramAndCurrentYear(
+          parse(Program.class, program.toUpperCase()), Integer.parseInt(year));
+    } catch (NumberFormatException e) {
+      throw new RequestException(STATUS_BAD_REQUEST, "Invalid year.");
+    }
+  }
+
+  private StudentReport report(String fn) {
+    Student student = find(fn);
+    Map<Discipline, Double> completed = new LinkedHashMap<>();
+    List<Discipline> ungraded = new ArrayList<>();
+    for (Course course : student.getCourses()) {
+      if (course.isSuccessfullyCompleted()) {
+        completed.put(course.getDiscipline(), course.getGrade());
+      } else if (course.isEnrolled()) {
+        ungraded.add(course.getDiscipline());
+      }
+    }
+    return new StudentReport(
+        student.getName(),
+        student.getFacultyNumber(),
+        completed,
+        ungraded,
+        student.getAverageGrade());
+  }
+
+  /** Съставя протокол от снимка на хранилището, както {@code protocol} в конзолата. */
+  private Protocol protocol(String disciplineName) {
+    Discipline discipline = parse(Discipline.class, disciplineName);
+    Map<Program, Map<Integer, List<ProtocolEntry>>> groups = new TreeMap<>();
+    studentRepository
+        .snapshot()
+        .forEachByDiscipline(
+            discipline,
+            student -> {
+              Integer year = student.getCurrentYear();
+              if (student.getProgram() == null || year == null || year < 1) {
+                return;
+              }
+              groups
+                  .computeIfAbsent(student.getProgram(), program -> new TreeMap<>())
+                  .computeIfAbsent(year, y -> new ArrayList<>())
+                  .add(new ProtocolEntry(student.getFacultyNumber(), student.getName()));
+            });
+    List<ProtocolGroup> result = new ArrayList<>();
+    groups.forEach(
+        (program, years) ->
+            years.forEach(
+                (year, students) -> result.add(new ProtocolGroup(program, year, students))));
+    return new Protocol(discipline, result);
+  }
+
+  private static void requireMethod(String method, String expected) {
+    if (!method.equals(expected)) {
+      throw new RequestException(STATUS_METHOD_NOT_ALLOWED, "Method " + method + " not allowed.");
+    }
+  }
+
+  private JsonNode readBody(HttpExchange exchange) throws IOException {
+    try {
+      JsonNode body = objectMapper.readTree(exchange.getRequestBody());
+      if (body == null || !body.isObject()) {
+        throw new RequestException(STATUS_BAD_REQUEST, "A JSON object is required.");
+      }
+      return body;
+    } catch (JsonProcessingException e) {
+      throw new RequestException(STATUS_BAD_REQUEST, "Invalid JSON.");
+    }
+  }
+
+  private static String requireText(JsonNode body, String field) {
+    JsonNode value = body.get(field);
+    if (value == null || !value.isValueNode() || value.asText().isEmpty()) {
+      throw new RequestException(STATUS_BAD_REQUEST, "Field " + field + " is required.");
+    }
+    return value.asText();
+  }
+
+  private static double requireNumber(JsonNode body, String field) {
+    JsonNode value = body.get(field);
+    if (value == null || !value.isNumber()) {
+      throw new RequestException(STATUS_BAD_REQUEST, "Field " + field + " must be a number.");
+    }
+    return value.asDouble();
+  }
+
+  private static <E extends Enum<E>> E parse(Class<E> type, String name) {
+    try {
+      return Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      String kind = type.getSimpleName().toLowerCase();
+      throw new RequestException(STATUS_BAD_REQUEST, "No " + kind + " found with this name.");
+    }
+  }
+
+  private static Map<String, String> query(URI uri) {
+    Map<String, String> parameters = new HashMap<>();
+    String query = uri.getRawQuery();
+    if (query == null) {
+      return parameters;
+    }
+    for (String pair : query.split("&")) {
+      int separator = pair.indexOf('=');
+      if (separator > 0) {
+        parameters.put(
+            URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+            URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+      }
+    }
+    return parameters;
+  }
+
+  private void send(HttpExchange exchange, int status, Object body) throws IOException {
+    byte[] bytes = objectMapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
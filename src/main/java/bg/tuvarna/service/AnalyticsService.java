@@ -0,0 +1,99 @@
+package bg.tuvarna.service;
+
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.repositories.StudentRepository;
+
+import java.io.PrintStream;
+import java.util.Collection;
+
+/**
+ * Клас, представляващ услуги за статистики върху всички студенти. Статистиките се изчисляват с
+ * едно паралелно обхождане на хранилището, при което всяка нишка натрупва частичен резултат в
+ * масиви от примитивни типове, а резултатите се сливат накрая.
+ */
+public class AnalyticsService {
+  private final StudentRepository studentRepository;
+  /** Потокът, в който се извеждат справките. */
+  private final PrintStream out;
+
+  public AnalyticsService(StudentRepository studentRepository) {
+    this(studentRepository, System.out);
+  }
+
+  public AnalyticsService(StudentRepository studentRepository, PrintStream out) {
+    this.studentRepository = studentRepository;
+    this.out = out;
+  }
+
+  /**
+   * Изчислява статистиките за всички студенти.
+   *
+   * @param topCount колко студенти с най-висок успех да бъдат включени
+   * @return статистиките
+   */
+  public CohortStatistics compute(int topCount) {
+    return studentRepository
+        .findAll()
+        .parallelStream()
+        .collect(
+            () -> new CohortStatistics(topCount),
+            CohortStatistics::accept,
+            CohortStatistics::combine);
+  }
+
+  /**
+   * Извежда статистиките за всички студенти.
+   *
+   * @param topCount колко студенти с най-висок успех да бъдат изведени
+   */
+  public void printStatistics(int topCount) {
+    CohortStatistics statistics = compute(topCount);
+    out.println("Students: " + statistics.getStudentCount());
+
+    out.println("Average grade by program and year:");
+    for (Program program : Program.values()) {
+      for (int year = 1; year <= CohortStatistics.MAX_YEAR; year++) {
+        long students = statistics.getStudentCount(program, year);
+        if (students > 0) {
+          out.printf(
+              "  %s year %d%s: %d students, average %.2f%n",
+              program,
+              year,
+              year == CohortStatistics.MAX_YEAR ? "+" : "",
+              students,
+              statistics.getAverageGrade(program, year));
+        }
+      }
+    }
+
+    out.println("Disciplines:");
+    for (Discipline discipline : Discipline.values()) {
+      if (statistics.getEnrolledCount(discipline) > 0) {
+        out.printf(
+            "  %s: %d enrolled, average %.2f, pass rate %.1f%%%n",
+            discipline.getName(),
+            statistics.getEnrolledCount(discipline),
+            statistics.getAverageGrade(discipline),
+            statistics.getPassRate(discipline) * 100);
+      }
+    }
+
+    out.println("Grade histogram:");
+    double[] bounds = statistics.getHistogramLowerBounds();
+    long[] histogram = statistics.getHistogram();
+    for (int i = 0; i < histogram.length; i++) {
+      String range = i + 1 < bounds.length ? bounds[i] + "-" + bounds[i + 1] : bounds[i] + "";
+      out.println("  " + range + ": " + histogram[i]);
+    }
+
+    Collection<CohortStatistics.RankedStudent> topStudents = statistics.getTopStudents();
+    if (!topStudents.isEmpty()) {
+      out.println("Top students:");
+      for (CohortStatistics.RankedStudent student : topStudents) {
+        out.printf(
+            "  %s (%s) - %.2f%n", student.name(), student.facultyNumber(), student.averageGrade());
+      }
+    }
+  }
+}
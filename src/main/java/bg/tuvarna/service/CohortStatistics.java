@@ -0,0 +1,225 @@
+package bg.tuvarna.service;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Класът CohortStatistics съдържа обобщени статистики за всички студенти: среден успех по
+ * програма и година и по дисциплина, процент успешно завършили по дисциплина, хистограма на
+ * оценките и студентите с най-висок успех.
+ *
+ * <p>Статистиките се натрупват в масиви от примитивни типове, индексирани по пореден номер на
+ * програмата, година и пореден номер на дисциплината. Така всяка нишка при паралелно обхождане
+ * пълни собствен обект без боксиране, а частичните резултати се сливат накрая.
+ */
+public class CohortStatistics {
+  /** Най-голямата година, която се отчита отделно; по-горните години се отчитат в нея. */
+  public static final int MAX_YEAR = 4;
+  /** Долни граници на интервалите в хистограмата на оценките. */
+  private static final double[] HISTOGRAM_LOWER_BOUNDS = {2.0, 3.0, 4.0, 5.0, 6.0};
+
+  private final int topCount;
+  private final double[] gradeSumByProgramYear = new double[Program.values().length * MAX_YEAR];
+  private final long[] gradeCountByProgramYear = new long[Program.values().length * MAX_YEAR];
+  private final long[] studentCountByProgramYear = new long[Program.values().length * MAX_YEAR];
+  private final double[] gradeSumByDiscipline = new double[Discipline.values().length];
+  private final long[] gradedCountByDiscipline = new long[Discipline.values().length];
+  private final long[] passedCountByDiscipline = new long[Discipline.values().length];
+  private final long[] enrolledCountByDiscipline = new long[Discipline.values().length];
+  private final long[] histogram = new long[HISTOGRAM_LOWER_BOUNDS.length];
+  /** Студентите с най-висок успех; на върха е най-слабият от тях. */
+  private final PriorityQueue<RankedStudent> top;
+  private long studentCount;
+
+  /**
+   * Студент и средният му успех.
+   *
+   * @param facultyNumber факултетен номер
+   * @param name име
+   * @param averageGrade среден успех
+   */
+  public record RankedStudent(String facultyNumber, String name, double averageGrade) {}
+
+  private static final Comparator<RankedStudent> BY_AVERAGE =
+      Comparator.comparingDouble(RankedStudent::averageGrade)
+          .thenComparing(RankedStudent::facultyNumber, Comparator.reverseOrder());
+
+  CohortStatistics(int topCount) {
+    this.topCount = topCount;
+    this.top = new PriorityQueue<>(Math.max(1, topCount + 1), BY_AVERAGE);
+  }
+
+  /** Добавя един студент към статистиките. */
+  void accept(Student student) {
+    studentCount++;
+    int programYear = programYearIndex(student);
+    if (programYear >= 0) {
+      studentCountByProgramYear[programYear]++;
+    }
+    for (Course course : student.getCourses()) {
+      int discipline = course.getDiscipline().ordinal();
+      if (course.isEnrolled()) {
+        enrolledCountByDiscipline[discipline]++;
+      }
+      if (!course.isGraded()) {
+        continue;
+      }
+      double grade = course.getGrade();
+      gradeSumByDiscipline[discipline] += grade;
+      gradedCountByDiscipline[discipline]++;
+      if (course.isSuccessfullyCompleted()) {
+        passedCountByDiscipline[discipline]++;
+      }
+      if (programYear >= 0) {
+        gradeSumByProgramYear[programYear] += grade;
+        gradeCountByProgramYear[programYear]++;
+      }
+      histogram[histogramIndex(grade)]++;
+    }
+    double averageGrade = student.getAverageGrade();
+    if (topCount > 0 && averageGrade > 0) {
+      // Ако класацията е пълна, обект се създава само за студент, който влиза в нея.
+      if (top.size() < topCount || averageGrade >= top.peek().averageGrade()) {
+        offer(new RankedStudent(student.getFacultyNumber(), student.getName(), averageGrade));
+      }
+    }
+  }
+
+  /** Слива частични статистики, натрупани от друга нишка. */
+  void combine(CohortStatistics other) {
+    studentCount += other.studentCount;
+    add(gradeSumByProgramYear, other.gradeSumByProgramYear);
+    add(gradeCountByProgramYear, other.gradeCountByProgramYear);
+    add(studentCountByProgramYear, other.studentCountByProgramYear);
+    add(gradeSumByDiscipline, other.gradeSumByDiscipline);
+    add(gradedCountByDiscipline, other.gradedCountByDiscipline);
+    add(passedCountByDiscipline, other.passedCountByDiscipline);
+    add(enrolledCountByDiscipline, other.enrolledCountByDiscipline);
+    add(histogram, other.histogram);
+    for (RankedStudent rankedStudent : other.top) {
+      offer(rankedStudent);
+    }
+  }
+
+  private void offer(RankedStudent rankedStudent) {
+    top.add(rankedStudent);
+    if (top.size() > topCount) {
+      top.poll();
+    }
+  }
+
+  private static int programYearIndex(Student student) {
+    if (student.getProgram() == null || student.getCurrentYear() == null) {
+      return -1;
+    }
+    int year = Math.min(Math.max(student.getCurrentYear(), 1), MAX_YEAR);
+    return student.getProgram().ordinal() * MAX_YEAR + (year - 1);
+  }
+
+  private static int histogramIndex(double grade) {
+    int index = 0;
+    while (index + 1 < HISTOGRAM_LOWER_BOUNDS.length
+        && grade >= HISTOGRAM_LOWER_BOUNDS[index + 1]) {
+      index++;
+    }
+    return index;
+  }
+
+  private static void add(double[] target, double[] source) {
+    for (int i = 0; i < target.length; i++) {
+      target[i] += source[i];
+    }
+  }
+
+  private static void add(long[] target, long[] source) {
+    for (int i = 0; i < target.length; i++) {
+      target[i] += source[i];
+    }
+  }
+
+  /**
+   * @return броят на обходените студенти
+   */
+  public long getStudentCount() {
+    return studentCount;
+  }
+
+  /**
+   * @param program програмата
+   * @param year годината (по-големите от MAX_YEAR се отчитат в MAX_YEAR)
+   * @return броят на студентите в програмата и годината
+   */
+  public long getStudentCount(Program program, int year) {
+    return studentCountByProgramYear[program.ordinal() * MAX_YEAR + (year - 1)];
+  }
+
+  /**
+   * @param program програмата
+   * @param year годината (по-големите от MAX_YEAR се отчитат в MAX_YEAR)
+   * @return средната оценка на студентите в програмата и годината или 0, ако няма оценки
+   */
+  public double getAverageGrade(Program program, int year) {
+    int index = program.ordinal() * MAX_YEAR + (year - 1);
+    return average(gradeSumByProgramYear[index], gradeCountByProgramYear[index]);
+  }
+
+  /**
+   * @param discipline дисциплината
+   * @return средната оценка по дисциплината или 0, ако няма оценки
+   */
+  public double getAverageGrade(Discipline discipline) {
+    int index = discipline.ordinal();
+    return average(gradeSumByDiscipline[index], gradedCountByDiscipline[index]);
+  }
+
+  /**
+   * @param discipline дисциплината
+   * @return броят на записаните в дисциплината
+   */
+  public long getEnrolledCount(Discipline discipline) {
+    return enrolledCountByDiscipline[discipline.ordinal()];
+  }
+
+  /**
+   * @param discipline дисциплината
+   * @return делът на успешно завършилите от оценените по дисциплината (от 0 до 1)
+   */
+  public double getPassRate(Discipline discipline) {
+    int index = discipline.ordinal();
+    return average(passedCountByDiscipline[index], gradedCountByDiscipline[index]);
+  }
+
+  /**
+   * @return долните граници на интервалите в хистограмата
+   */
+  public double[] getHistogramLowerBounds() {
+    return HISTOGRAM_LOWER_BOUNDS.clone();
+  }
+
+  /**
+   * @return броят на оценките във всеки интервал на хистограмата
+   */
+  public long[] getHistogram() {
+    return histogram.clone();
+  }
+
+  /**
+   * @return студентите с най-висок среден успех, подредени низходящо
+   */
+  public List<RankedStudent> getTopStudents() {
+    List<RankedStudent> result = new ArrayList<>(top);
+    result.sort(BY_AVERAGE.reversed());
+    return result;
+  }
+
+  private static double average(double sum, long count) {
+    return count > 0 ? sum / count : 0;
+  }
+}
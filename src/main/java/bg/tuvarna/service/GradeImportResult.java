@@ -0,0 +1,20 @@
+package bg.tuvarna.service;
+
+import java.util.List;
+
+/**
+ * Резултат от масово въвеждане на оценки.
+ *
+ * @param accepted приетите записи
+ * @param rejected отхвърлените редове с причината за отхвърлянето
+ */
+public record GradeImportResult(List<GradeRecord> accepted, List<Rejection> rejected) {
+
+  /**
+   * Отхвърлен ред.
+   *
+   * @param row пореден номер на реда във входните данни (от 1)
+   * @param reason причината за отхвърлянето
+   */
+  public record Rejection(int row, String reason) {}
+}
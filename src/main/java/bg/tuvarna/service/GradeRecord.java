@@ -0,0 +1,11 @@
+package bg.tuvarna.service;
+
+/**
+ * Запис за оценка при масово въвеждане на оценки.
+ *
+ * @param row пореден номер на реда във входните данни (от 1)
+ * @param facultyNumber факултетен номер на студента
+ * @param disciplineName име на дисциплината
+ * @param grade оценка
+ */
+public record GradeRecord(int row, String facultyNumber, String disciplineName, double grade) {}
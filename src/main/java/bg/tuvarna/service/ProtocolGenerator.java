@@ -0,0 +1,184 @@
+package bg.tuvarna.service;
+
+import bg.tuvarna.models.Course;
+import bg.tuvarna.models.Discipline;
+import bg.tuvarna.models.Program;
+import bg.tuvarna.models.Student;
+import bg.tuvarna.repositories.StudentRepository;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Класът ProtocolGenerator съставя протоколи за дисциплини - записаните студенти, групирани по
+ * програма и година.
+ *
+ * <p>Записаните студенти се подреждат със сортиране чрез броене: всеки запис получава ключ
+ * (дисциплина, програма, година), броят на записите за всеки ключ се натрупва в масив с размер
+ * брой дисциплини × брой програми × най-голямата година, а записите се нареждат в масив от
+ * индекси. Масивите се преизползват между извикванията, а текстът се записва директно в
+ * буфериран Writer, така че генерирането не създава междинни колекции и низове. Протоколите за
+ * всички дисциплини се съставят с едно обхождане на хранилището. Сортирането чрез броене е
+ * стабилно, затова в рамките на програма и година студентите остават в реда на добавяне - и в
+ * протокола за една дисциплина, и в протоколите за всички.
+ *
+ * <p>Обектите от този клас не се използват паралелно - методите им са синхронизирани.
+ */
+public class ProtocolGenerator {
+  private static final int PROGRAMS = Program.values().length;
+  private static final Discipline[] DISCIPLINES = Discipline.values();
+  private static final Program[] PROGRAM_VALUES = Program.values();
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private final StudentRepository studentRepository;
+  private final Writer writer;
+
+  /** Студентите в реда на добавяне към текущия протокол. */
+  private Student[] students = new Student[64];
+  /** За всеки запис: дисциплина * брой програми + програма. */
+  private int[] disciplinePrograms = new int[64];
+  /** За всеки запис: годината на студента. */
+  private int[] years = new int[64];
+  /** Индексите на записите, подредени по ключ. */
+  private int[] order = new int[64];
+  /** Началото на всеки ключ в order; използва се и като брояч при нареждането. */
+  private int[] bucketStarts = new int[0];
+  private int size;
+  private int maxYear;
+
+  public ProtocolGenerator(StudentRepository studentRepository, OutputStream out) {
+    this.studentRepository = studentRepository;
+    this.writer =
+        new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), 1 << 16);
+  }
+
+  /**
+   * Извежда протокол за дадена дисциплина. Обхождат се само записаните в нея студенти.
+   *
+   * @param discipline дисциплината
+   * @throws IOException при грешка при извеждане
+   */
+  public synchronized void write(Discipline discipline) throws IOException {
+    reset();
+    studentRepository
+        .snapshot()
+        .forEachByDiscipline(discipline, student -> add(student, discipline));
+    writeProtocols(false);
+  }
+
+  /**
+   * Извежда протоколи за всички дисциплини с едно обхождане на хранилището.
+   *
+   * @throws IOException при грешка при извеждане
+   */
+  public synchronized void writeAll() throws IOException {
+    reset();
+    for (Student student : studentRepository.snapshot()) {
+      for (Course course : student.getCourses()) {
+        if (course.isEnrolled()) {
+          add(student, course.getDiscipline());
+        }
+      }
+    }
+    writeProtocols(true);
+  }
+
+  private void reset() {
+    Arrays.fill(students, 0, size, null);
+    size = 0;
+    maxYear = 0;
+  }
+
+  private void add(Student student, Discipline discipline) {
+    Program program = student.getProgram();
+    Integer year = student.getCurrentYear();
+    if (program == null || year == null || year < 1) {
+      return;
+    }
+    if (size == students.length) {
+      int capacity = size * 2;
+      students = Arrays.copyOf(students, capacity);
+      disciplinePrograms = Arrays.copyOf(disciplinePrograms, capacity);
+      years = Arrays.copyOf(years, capacity);
+      order = Arrays.copyOf(order, capacity);
+    }
+    students[size] = student;
+    disciplinePrograms[size] = discipline.ordinal() * PROGRAMS + program.ordinal();
+    years[size] = year;
+    maxYear = Math.max(maxYear, year);
+    size++;
+  }
+
+  private int bucketOf(int entry) {
+    return disciplinePrograms[entry] * maxYear + (years[entry] - 1);
+  }
+
+  /** Подрежда записите по ключ чрез сортиране чрез броене и извежда протоколите. */
+  private void writeProtocols(boolean withDisciplineHeaders) throws IOException {
+    int bucketCount = DISCIPLINES.length * PROGRAMS * maxYear;
+    if (bucketStarts.length < bucketCount + 1) {
+      bucketStarts = new int[bucketCount + 1];
+    } else {
+      Arrays.fill(bucketStarts, 0, bucketCount + 1, 0);
+    }
+    for (int i = 0; i < size; i++) {
+      bucketStarts[bucketOf(i) + 1]++;
+    }
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      bucketStarts[bucket + 1] += bucketStarts[bucket];
+    }
+    // Стабилно нареждане; след него bucketStarts[b] сочи края на ключ b, т.е. началото на b + 1.
+    for (int i = 0; i < size; i++) {
+      order[bucketStarts[bucketOf(i)]++] = i;
+    }
+
+    int previousDiscipline = -1;
+    int previousProgram = -1;
+    int position = 0;
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      int end = bucketStarts[bucket];
+      if (position == end) {
+        continue;
+      }
+      int disciplineProgram = bucket / maxYear;
+      int discipline = disciplineProgram / PROGRAMS;
+      int program = disciplineProgram % PROGRAMS;
+      if (discipline != previousDiscipline) {
+        if (withDisciplineHeaders) {
+          writeLine("Discipline: ", DISCIPLINES[discipline].getName());
+        }
+        previousDiscipline = discipline;
+        previousProgram = -1;
+      }
+      if (program != previousProgram) {
+        writeLine("Program: ", PROGRAM_VALUES[program].name());
+        previousProgram = program;
+      }
+      writer.write("Year: ");
+      writeInt(bucket % maxYear + 1);
+      writer.write(LINE_SEPARATOR);
+      for (; position < end; position++) {
+        writeLine("Student: ", students[order[position]].getName());
+      }
+    }
+    writer.flush();
+  }
+
+  private void writeLine(String label, String value) throws IOException {
+    writer.write(label);
+    writer.write(String.valueOf(value));
+    writer.write(LINE_SEPARATOR);
+  }
+
+  private void writeInt(int value) throws IOException {
+    if (value >= 10) {
+      writeInt(value / 10);
+    }
+    writer.write('0' + value % 10);
+  }
+}
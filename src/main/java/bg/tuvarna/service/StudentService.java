@@ -1,82 +1,174 @@
 package bg.tuvarna.service;
 
 import bg.tuvarna.models.*;
+import bg.tuvarna.persistence.Journal;
 import bg.tuvarna.repositories.StudentRepository;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
-
-/** Клас, представляващ услуги свързани със студентите. */
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Клас, представляващ услуги свързани със студентите. Може да се използва от няколко нишки
+ * едновременно: всяка промяна по студент се изпълнява, докато е взето заключването му в
+ * хранилището. Промените се правят върху копие на студента, което заменя записания студент
+ * едва при запис, затова справките могат да четат записаните студенти без заключване и без да
+ * ги копират.
+ */
 public class StudentService {
   private final StudentRepository studentRepository;
+  /** Потокът, в който се извеждат съобщенията и справките. */
+  private final PrintStream out;
+  /** Генераторът на протоколи, който пише в out; създава се при първия протокол. */
+  private ProtocolGenerator protocolGenerator;
+  /** Дневникът, в който се записват промените, или null, ако не се води дневник. */
+  private volatile Journal journal;
+  /** Дали да се пропускат потвържденията за успешно изпълнени операции. */
+  private volatile boolean quiet;
 
   public StudentService(StudentRepository studentRepository) {
+    this(studentRepository, System.out);
+  }
+
+  public StudentService(StudentRepository studentRepository, PrintStream out) {
     this.studentRepository = studentRepository;
+    this.out = out;
+  }
+
+  private synchronized ProtocolGenerator protocolGenerator() {
+    if (protocolGenerator == null) {
+      protocolGenerator = new ProtocolGenerator(studentRepository, out);
+    }
+    return protocolGenerator;
   }
 
   /**
-   * Записва студент в първи курс.
+   * Задава дневник, в който да се записва всяка успешна промяна.
    *
-   * @param name име на студента
-   * @param program програма, в която се записва студента
-   * @param group група на студента
-   * @param fn факултетен номер на студента
+   * @param journal дневникът или null, за да се спре воденето на дневник
    */
-  public void enrollStudent(String name, Program program, int group, String fn) {
-    Student student = new Student();
-    student.setName(name);
-    student.setProgram(program);
-    student.setGroup(group);
-    student.setFacultyNumber(fn);
-    student.setStatus(Status.ACTIVE);
-    student.setCourseList(new ArrayList<>());
-    student.setCurrentYear(1);
+  public void setJournal(Journal journal) {
+    this.journal = journal;
+  }
 
-    studentRepository.save(student);
+  /**
+   * Включва или изключва извеждането на потвърждения за успешно изпълнени операции. Съобщенията
+   * за грешки и справките се извеждат винаги.
+   *
+   * @param quiet true, за да се пропускат потвържденията
+   */
+  public void setQuiet(boolean quiet) {
+    this.quiet = quiet;
   }
+
+  private boolean confirm(String message) {
+    if (!quiet) {
+      out.println(message);
+    }
+    return true;
+  }
+
+  private boolean fail(String message) {
+    out.println(message);
+    return false;
+  }
+
+  private void record(Journal.Operation operation, String... arguments) {
+    if (journal != null) {
+      journal.append(operation, arguments);
+    }
+  }
+
   /**
-   * Проверява дали дадена дисциплина е успешно завършена.
+   * Прилага отново операция, прочетена от дневника.
    *
-   * @param course дисциплина
-   * @return true, ако дисциплината е успешно завършена, false в противен случай
+   * @param entry записът от дневника
    */
-  private boolean isCourseSuccessfullyCompleted(Course course) {
-    return course.isEnrolled() && course.isGraded() && course.getGrade() >= 3.0;
+  public void replay(Journal.Entry entry) {
+    List<String> args = entry.arguments();
+    switch (entry.operation()) {
+      case ENROLL -> enrollStudent(
+          args.get(0), Program.valueOf(args.get(1)), Integer.parseInt(args.get(2)), args.get(3));
+      case ADVANCE -> advance(args.get(0));
+      case CHANGE -> change(args.get(0), args.get(1), args.get(2));
+      case GRADUATE -> graduate(args.get(0));
+      case INTERRUPT -> interrupt(args.get(0));
+      case RESUME -> resume(args.get(0));
+      case ENROLL_IN -> enrollIn(args.get(0), args.get(1));
+      case ADD_GRADE -> addGrade(args.get(0), args.get(1), Double.parseDouble(args.get(2)));
+    }
   }
 
   /**
-   * Записва студент в следващ курс.
+   * Записва студент в първи курс.
    *
+   * @param name име на студента
+   * @param program програма, в която се записва студента
+   * @param group група на студента
    * @param fn факултетен номер на студента
+   * @return true, ако промяната е направена
    */
-  public void advance(String fn) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
-    if (student.getStatus() == Status.DROPOUT) {
-      System.out.println("The student doesn't have rights.");
-      return;
+  public boolean enrollStudent(String name, Program program, int group, String fn) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      if (studentRepository.existsByFacultyNumber(fn)) {
+        return fail("A student with this faculty number already exists.");
+      }
+      Student student = new Student();
+      student.setName(name);
+      student.setProgram(program);
+      student.setGroup(group);
+      student.setFacultyNumber(fn);
+      student.setStatus(Status.ACTIVE);
+      student.setCurrentYear(1);
+
+      studentRepository.save(student);
+      record(Journal.Operation.ENROLL, name, program.name(), String.valueOf(group), fn);
+      return confirm("Student enrolled successfully.");
+    } finally {
+      lock.unlock();
     }
+  }
+  /**
+   * Записва студент в следващ курс.
+   *
+   * @param fn факултетен номер на студента
+   * @return true, ако промяната е направена
+   */
+  public boolean advance(String fn) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
+      if (student.getStatus() == Status.DROPOUT) {
+        return fail("The student doesn't have rights.");
+      }
 
-    // Проверка дали студентът е минал задължителните дисциплини от текущия курс
-    for (Course course : student.getCourseList()) {
-      if (course.getDiscipline().getYear().equals(student.getCurrentYear())
-          && course.getDiscipline().getIsMandatory()
-          && !isCourseSuccessfullyCompleted(course)) {
-        System.out.println(
+      // Проверка дали студентът е минал задължителните дисциплини от текущия курс
+      if (!student.hasCompletedMandatoryCoursesOfYear(student.getCurrentYear())) {
+        return fail(
             "The student has not successfully completed all mandatory disciplines of the current year.");
-        return;
       }
-    }
 
-    // Преминаване в следващ курс
-    student.setCurrentYear(student.getCurrentYear() + 1);
-    System.out.println("The student has been advanced to the next year.");
+      // Преминаване в следващ курс
+      student.setCurrentYear(student.getCurrentYear() + 1);
+      studentRepository.save(student);
+      record(Journal.Operation.ADVANCE, fn);
+      return confirm("The student has been advanced to the next year.");
+    } finally {
+      lock.unlock();
+    }
   }
   /**
    * Променя стойността на определена характеристика на студент.
@@ -84,34 +176,42 @@ public class StudentService {
    * @param fn факултетен номер на студента
    * @param option опция за промяна
    * @param value нова стойност
+   * @return true, ако промяната е направена
    */
-  public void change(String fn, String option, String value) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
-    if (student.getStatus() == Status.DROPOUT) {
-      System.out.println("The student doesn't have rights.");
-      return;
-    }
+  public boolean change(String fn, String option, String value) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
+      if (student.getStatus() == Status.DROPOUT) {
+        return fail("The student doesn't have rights.");
+      }
 
-    switch (option.toLowerCase()) {
-      case "group" -> changeGroup(student, Integer.parseInt(value));
-      case "year" -> {
-        if (Integer.parseInt(value) != student.getCurrentYear() + 1) {
-          System.out.println("Can only advance to the next year.");
-          return;
+      switch (option.toLowerCase()) {
+        case "group" -> {
+          return changeGroup(student, Integer.parseInt(value));
+        }
+        case "year" -> {
+          if (Integer.parseInt(value) != student.getCurrentYear() + 1) {
+            return fail("Can only advance to the next year.");
+          }
+          return advance(student.getFacultyNumber());
+        }
+        case "program" -> {
+          if (doesProgramExist(value.toUpperCase())) {
+            Program newProgram = Program.valueOf(value.toUpperCase());
+            return changeProgram(student, newProgram);
+          } else return fail("Invalid program input");
+        }
+        default -> {
+          return fail("Invalid option.");
         }
-        advance(student.getFacultyNumber());
-      }
-      case "program" -> {
-        if (doesProgramExist(value.toUpperCase())) {
-          Program newProgram = Program.valueOf(value.toUpperCase());
-          changeProgram(student, newProgram);
-        } else System.out.println("Invalid program input");
       }
-      default -> System.out.println("Invalid option.");
+    } finally {
+      lock.unlock();
     }
   }
   private boolean doesProgramExist(String value){
@@ -126,94 +226,112 @@ public class StudentService {
   /**
    * @param student студент
    * @param value номер на новата група
+   * @return true, ако промяната е направена
    */
-  private void changeGroup(Student student, int value) {
+  private boolean changeGroup(Student student, int value) {
     student.setGroup(value);
-    System.out.println("Student's group has been changed.");
+    studentRepository.save(student);
+    record(Journal.Operation.CHANGE, student.getFacultyNumber(), "group", String.valueOf(value));
+    return confirm("Student's group has been changed.");
   }
 
   /**
    * @param student студент
    * @param program нова специалност
+   * @return true, ако промяната е направена
    */
-  private void changeProgram(Student student, Program program) {
+  private boolean changeProgram(Student student, Program program) {
 
     for (Discipline discipline : program.getDisciplines()) {
       if (discipline.getYear() <= student.getCurrentYear() && discipline.getIsMandatory()) {
-        boolean hasCourse = false;
-        for (Course course : student.getCourseList()) {
-          if (course.getDiscipline() == discipline && isCourseSuccessfullyCompleted(course)) {
-            hasCourse = true;
-            break;
-          }
-        }
-        if (!hasCourse) {
-          System.out.println(
+        if (!student.hasCompleted(discipline)) {
+          return fail(
               "The student has not successfully completed all mandatory disciplines for the new program.");
-          return;
         }
       }
     }
     student.setProgram(program);
-    System.out.println("The student's program has been changed.");
+    studentRepository.save(student);
+    record(Journal.Operation.CHANGE, student.getFacultyNumber(), "program", program.name());
+    return confirm("The student's program has been changed.");
   }
   /**
    * Променя статуса на студента на завършил.
    *
    * @param fn факултетен номер на студента
+   * @return true, ако промяната е направена
    */
-  public void graduate(String fn) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
-    if (student.getStatus() == Status.DROPOUT) {
-      System.out.println("The student doesn't have rights.");
-      return;
-    }
-    for (Course course : student.getCourseList()) {
-      if (!isCourseSuccessfullyCompleted(course)) {
-        System.out.println("The student has not successfully completed all disciplines.");
-        return;
+  public boolean graduate(String fn) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
+      if (student.getStatus() == Status.DROPOUT) {
+        return fail("The student doesn't have rights.");
+      }
+      if (!student.hasCompletedAllCourses()) {
+        return fail("The student has not successfully completed all disciplines.");
       }
-    }
 
-    student.setStatus(Status.GRADUATED);
-    System.out.println("The student has graduated.");
+      student.setStatus(Status.GRADUATED);
+      studentRepository.save(student);
+      record(Journal.Operation.GRADUATE, fn);
+      return confirm("The student has graduated.");
+    } finally {
+      lock.unlock();
+    }
   }
   /**
    * Прекъсва студентските права на студент.
    *
    * @param fn факултетен номер на студента
+   * @return true, ако промяната е направена
    */
-  public void interrupt(String fn) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
+  public boolean interrupt(String fn) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
 
-    student.setStatus(Status.DROPOUT);
-    System.out.println("The student has dropped out.");
+      student.setStatus(Status.DROPOUT);
+      studentRepository.save(student);
+      record(Journal.Operation.INTERRUPT, fn);
+      return confirm("The student has dropped out.");
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
    * Възстановява студентските права след прекъсване
    *
    * @param fn факултетен номер на студента
+   * @return true, ако промяната е направена
    */
-  public void resume(String fn) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
-    if (student.getStatus() == Status.DROPOUT) {
-      student.setStatus(Status.ACTIVE);
-      System.out.println("Student rights successfully regained.");
-    } else {
-      System.out.println("Student has not dropped out.");
+  public boolean resume(String fn) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
+      if (student.getStatus() == Status.DROPOUT) {
+        student.setStatus(Status.ACTIVE);
+        studentRepository.save(student);
+        record(Journal.Operation.RESUME, fn);
+        return confirm("Student rights successfully regained.");
+      } else {
+        return fail("Student has not dropped out.");
+      }
+    } finally {
+      lock.unlock();
     }
   }
   /**
@@ -224,20 +342,20 @@ public class StudentService {
   public void print(String fn) {
     Student student = studentRepository.findByFacultyNumber(fn);
     if (student == null) {
-      System.out.println("No student found with this faculty number.");
+      out.println("No student found with this faculty number.");
       return;
     }
 
-    System.out.println("Student name: " + student.getName());
-    System.out.println("Program: " + student.getProgram().getName());
-    System.out.println("Group: " + student.getGroup());
-    System.out.println("Faculty Number: " + student.getFacultyNumber());
-    System.out.println("Status: " + student.getStatus());
-    System.out.println("Current Year: " + student.getCurrentYear());
-    System.out.println("Courses:");
-    for (Course course : student.getCourseList()) {
-      System.out.println("  Course: " + course.getDiscipline().getName());
-      System.out.println("  Grade: " + (course.isGraded() ? course.getGrade() : "Not graded yet"));
+    out.println("Student name: " + student.getName());
+    out.println("Program: " + student.getProgram().getName());
+    out.println("Group: " + student.getGroup());
+    out.println("Faculty Number: " + student.getFacultyNumber());
+    out.println("Status: " + student.getStatus());
+    out.println("Current Year: " + student.getCurrentYear());
+    out.println("Courses:");
+    for (Course course : student.getCourses()) {
+      out.println("  Course: " + course.getDiscipline().getName());
+      out.println("  Grade: " + (course.isGraded() ? course.getGrade() : "Not graded yet"));
     }
   }
   /**
@@ -249,23 +367,23 @@ public class StudentService {
   public void printAll(String programName, int year) {
     List<Student> students = studentRepository.findByProgramAndCurrentYear(programName, year);
     if (students.isEmpty()) {
-      System.out.println("No students found in this program and year.");
+      out.println("No students found in this program and year.");
       return;
     }
 
     for (Student student : students) {
-      System.out.println("-----");
-      System.out.println("Student name: " + student.getName());
-      System.out.println("Group: " + student.getGroup());
-      System.out.println("Faculty Number: " + student.getFacultyNumber());
-      System.out.println("Status: " + student.getStatus());
-      System.out.println("Courses:");
-      for (Course course : student.getCourseList()) {
-        System.out.println("  Course: " + course.getDiscipline().getName());
-        System.out.println(
+      out.println("-----");
+      out.println("Student name: " + student.getName());
+      out.println("Group: " + student.getGroup());
+      out.println("Faculty Number: " + student.getFacultyNumber());
+      out.println("Status: " + student.getStatus());
+      out.println("Courses:");
+      for (Course course : student.getCourses()) {
+        out.println("  Course: " + course.getDiscipline().getName());
+        out.println(
             "  Grade: " + (course.isGraded() ? course.getGrade() : "Not graded yet"));
       }
-      System.out.println("-----");
+      out.println("-----");
     }
   }
   /**
@@ -273,41 +391,50 @@ public class StudentService {
    *
    * @param fn факултетен номер на студента
    * @param disciplineName име на дисциплината
+   * @return true, ако промяната е направена
    */
-  public void enrollIn(String fn, String disciplineName) {
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
-    }
-
-    Discipline discipline;
+  public boolean enrollIn(String fn, String disciplineName) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
     try {
-      discipline = Discipline.valueOf(disciplineName);
-    } catch (IllegalArgumentException e) {
-      System.out.println("No discipline found with this name.");
-      return;
-    }
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
 
-    // Проверка дали дисциплината е от съответната специалност и курс
-    if (!student.getProgram().getDisciplines().contains(discipline)
-        || !discipline.getYear().equals(student.getCurrentYear())) {
-      System.out.println("The student cannot enroll in this discipline.");
-      return;
-    }
+      Discipline discipline;
+      try {
+        discipline = Discipline.valueOf(disciplineName);
+      } catch (IllegalArgumentException e) {
+        return fail("No discipline found with this name.");
+      }
 
-    // Създаване на нова дисциплина за студента и добавяне към списъка му с дисциплини
-    Course course = new Course();
-    course.setDiscipline(discipline);
-    course.setEnrolled(true);
-    course.setGraded(false);
+      // Проверка дали дисциплината е от съответната специалност и курс
+      if (!student.getProgram().getDisciplines().contains(discipline)
+          || !discipline.getYear().equals(student.getCurrentYear())) {
+        return fail("The student cannot enroll in this discipline.");
+      }
 
-    student.getCourseList().add(course);
+      if (student.getCourse(discipline) != null) {
+        return fail("The student is already enrolled in this discipline.");
+      }
 
-    // Запазване на промените в repository
-    studentRepository.save(student);
+      // Създаване на нова дисциплина за студента и добавяне към списъка му с дисциплини
+      Course course = new Course();
+      course.setDiscipline(discipline);
+      course.setEnrolled(true);
+      course.setGraded(false);
+
+      student.addCourse(course);
 
-    System.out.println("The student has been enrolled in the course.");
+      // Запазване на промените в repository
+      studentRepository.save(student);
+      record(Journal.Operation.ENROLL_IN, fn, discipline.name());
+
+      return confirm("The student has been enrolled in the course.");
+    } finally {
+      lock.unlock();
+    }
   }
   /**
    * Добавя оценка за дадена дисциплина на студент.
@@ -315,45 +442,169 @@ public class StudentService {
    * @param fn факултетен номер на студента
    * @param disciplineName име на дисциплината
    * @param grade оценка
+   * @return true, ако промяната е направена
    */
-  public void addGrade(String fn, String disciplineName, double grade) {
-    // Намиране на студента по факултетен номер
-    Student student = studentRepository.findByFacultyNumber(fn);
-    if (student == null) {
-      System.out.println("No student found with this faculty number.");
-      return;
+  public boolean addGrade(String fn, String disciplineName, double grade) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      // Намиране на студента по факултетен номер
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        return fail("No student found with this faculty number.");
+      }
+
+      // Опит за намиране на дисциплината по име
+      Discipline discipline;
+      try {
+        discipline = Discipline.valueOf(disciplineName);
+      } catch (IllegalArgumentException e) {
+        return fail("No discipline found with this name.");
+      }
+
+      // Намиране на дисциплината в списъка с дисциплини на студента
+      Course course = student.getCourse(discipline);
+
+      // Проверка дали студентът е записан за тази дисциплина
+      if (course == null || !course.isEnrolled()) {
+        return fail("The student is not enrolled in this discipline.");
+      }
+
+      // Добавяне на оценката и маркиране на дисциплината като оценена
+      student.gradeCourse(discipline, grade);
+
+      // Запазване на промените в базата данни
+      studentRepository.save(student);
+      record(Journal.Operation.ADD_GRADE, fn, discipline.name(), String.valueOf(grade));
+
+      return confirm("The grade has been added.");
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Добавя наведнъж много оценки. Записите се групират по студент, така че всеки студент се
+   * търси и заключва веднъж и се записва в хранилището веднъж след прилагането на всичките му
+   * оценки.
+   *
+   * @param records записите с оценки
+   * @return приетите и отхвърлените записи
+   */
+  public GradeImportResult importGrades(List<GradeRecord> records) {
+    Map<String, List<GradeRecord>> recordsByStudent = new LinkedHashMap<>();
+    for (GradeRecord gradeRecord : records) {
+      recordsByStudent
+          .computeIfAbsent(gradeRecord.facultyNumber(), fn -> new ArrayList<>())
+          .add(gradeRecord);
     }
 
-    // Опит за намиране на дисциплината по име
-    Discipline discipline;
-    try {
-      discipline = Discipline.valueOf(disciplineName);
-    } catch (IllegalArgumentException e) {
-      System.out.println("No discipline found with this name.");
-      return;
+    List<GradeRecord> accepted = new ArrayList<>();
+    List<GradeImportResult.Rejection> rejected = new ArrayList<>();
+    for (Map.Entry<String, List<GradeRecord>> entry : recordsByStudent.entrySet()) {
+      importStudentGrades(entry.getKey(), entry.getValue(), accepted, rejected);
     }
+    rejected.sort(Comparator.comparingInt(GradeImportResult.Rejection::row));
+    return new GradeImportResult(accepted, rejected);
+  }
 
-    // Намиране на дисциплината в списъка с дисциплини на студента
-    Course course =
-        student.getCourseList().stream()
-            .filter(c -> c.getDiscipline() == discipline)
-            .findFirst()
-            .orElse(null);
+  private void importStudentGrades(
+      String fn,
+      List<GradeRecord> records,
+      List<GradeRecord> accepted,
+      List<GradeImportResult.Rejection> rejected) {
+    Lock lock = studentRepository.lockFor(fn);
+    lock.lock();
+    try {
+      Student student = studentRepository.findForUpdate(fn);
+      if (student == null) {
+        for (GradeRecord gradeRecord : records) {
+          rejected.add(
+              new GradeImportResult.Rejection(
+                  gradeRecord.row(), "No student found with this faculty number."));
+        }
+        return;
+      }
 
-    // Проверка дали студентът е записан за тази дисциплина
-    if (course == null || !course.isEnrolled()) {
-      System.out.println("The student is not enrolled in this discipline.");
-      return;
+      boolean changed = false;
+      for (GradeRecord gradeRecord : records) {
+        Discipline discipline;
+        try {
+          discipline = Discipline.valueOf(gradeRecord.disciplineName());
+        } catch (IllegalArgumentException e) {
+          rejected.add(
+              new GradeImportResult.Rejection(
+                  gradeRecord.row(), "No discipline found with this name."));
+          continue;
+        }
+        Course course = student.getCourse(discipline);
+        if (course == null || !course.isEnrolled()) {
+          rejected.add(
+              new GradeImportResult.Rejection(
+                  gradeRecord.row(), "The student is not enrolled in this discipline."));
+          continue;
+        }
+        student.gradeCourse(discipline, gradeRecord.grade());
+        record(
+            Journal.Operation.ADD_GRADE,
+            fn,
+            discipline.name(),
+            String.valueOf(gradeRecord.grade()));
+        accepted.add(gradeRecord);
+        changed = true;
+      }
+      if (changed) {
+        studentRepository.save(student);
+      }
+    } finally {
+      lock.unlock();
     }
+  }
 
-    // Добавяне на оценката и маркиране на дисциплината като оценена
-    course.setGrade(grade);
-    course.setGraded(true);
-
-    // Запазване на промените в базата данни
-    studentRepository.save(student);
+  /**
+   * Добавя наведнъж оценки, прочетени от CSV с колони факултетен номер, дисциплина и оценка.
+   * Първият ред се пропуска, ако е заглавен ред. Редовете с грешен формат се отхвърлят.
+   *
+   * @param reader източникът на CSV данните
+   * @return приетите и отхвърлените редове
+   * @throws IOException при грешка при четене
+   */
+  public GradeImportResult importGradesCsv(BufferedReader reader) throws IOException {
+    List<GradeRecord> records = new ArrayList<>();
+    List<GradeImportResult.Rejection> malformed = new ArrayList<>();
+    String line;
+    int row = 0;
+    while ((line = reader.readLine()) != null) {
+      row++;
+      if (line.isBlank() || (row == 1 && line.startsWith("facultyNumber"))) {
+        continue;
+      }
+      String[] columns = line.split(",");
+      if (columns.length != 3) {
+        malformed.add(
+            new GradeImportResult.Rejection(
+                row, "Expected 3 columns: facultyNumber,discipline,grade."));
+        continue;
+      }
+      try {
+        records.add(
+            new GradeRecord(
+                row,
+                columns[0].trim(),
+                columns[1].trim(),
+                Double.parseDouble(columns[2].trim())));
+      } catch (NumberFormatException e) {
+        malformed.add(new GradeImportResult.Rejection(row, "Invalid grade."));
+      }
+    }
 
-    System.out.println("The grade has been added.");
+    GradeImportResult result = importGrades(records);
+    if (malformed.isEmpty()) {
+      return result;
+    }
+    List<GradeImportResult.Rejection> rejected = new ArrayList<>(result.rejected());
+    rejected.addAll(malformed);
+    rejected.sort(Comparator.comparingInt(GradeImportResult.Rejection::row));
+    return new GradeImportResult(result.accepted(), rejected);
   }
   /**
    * Извежда протокол за дадена дисциплина.
@@ -366,43 +617,26 @@ public class StudentService {
     try {
       discipline = Discipline.valueOf(disciplineName);
     } catch (IllegalArgumentException e) {
-      System.out.println("No discipline found with this name.");
+      out.println("No discipline found with this name.");
       return;
     }
 
-    // Извличане на всички студенти от базата данни
-    List<Student> students = studentRepository.findAll();
-
-    // Филтриране на студентите, които са записани за дадената дисциплина
-    List<Student> enrolledStudents =
-        students.stream()
-            .filter(
-                student ->
-                    student.getCourseList().stream()
-                        .anyMatch(
-                            course -> course.getDiscipline() == discipline && course.isEnrolled()))
-            .toList();
-
-    // Групиране на студентите по специалност и курс
-    Map<Program, Map<Integer, List<Student>>> groupedStudents =
-        enrolledStudents.stream()
-            .collect(
-                Collectors.groupingBy(
-                    Student::getProgram,
-                    TreeMap::new,
-                    Collectors.groupingBy(
-                        Student::getCurrentYear, TreeMap::new, Collectors.toList())));
-
-    // Извеждане на протоколите
-    groupedStudents.forEach(
-        (program, byYear) -> {
-          System.out.println("Program: " + program);
-          byYear.forEach(
-              (year, studentList) -> {
-                System.out.println("Year: " + year);
-                studentList.forEach(student -> System.out.println("Student: " + student.getName()));
-              });
-        });
+    // Групиране на записаните студенти по специалност и курс и извеждане на протоколите
+    try {
+      out.flush();
+      protocolGenerator().write(discipline);
+    } catch (IOException e) {
+      out.println("An error occurred while writing the protocol.");
+    }
+  }
+  /** Извежда протоколи за всички дисциплини с едно обхождане на студентите. */
+  public void protocolAll() {
+    try {
+      out.flush();
+      protocolGenerator().writeAll();
+    } catch (IOException e) {
+      out.println("An error occurred while writing the protocol.");
+    }
   }
   /**
    * Извежда отчет за студент.
@@ -412,35 +646,30 @@ public class StudentService {
   public void report(String fn) {
     Student student = studentRepository.findByFacultyNumber(fn);
     if (student == null) {
-      System.out.println("No student found with this faculty number.");
+      out.println("No student found with this faculty number.");
       return;
     }
 
-    List<Course> enrolledCourses = student.getCourseList();
-    double totalGrade = 0.0;
-    int gradedCoursesCount = 0;
+    Collection<Course> enrolledCourses = student.getCourses();
     List<Discipline> ungradedCourses = new ArrayList<>();
 
-    System.out.println(
+    out.println(
         "Student report for " + student.getName() + "(" + student.getFacultyNumber() + ")");
-    System.out.println("Completed courses:");
+    out.println("Completed courses:");
 
     for (Course course : enrolledCourses) {
       if (course.isSuccessfullyCompleted()) {
-        totalGrade += course.getGrade();
-        gradedCoursesCount++;
-        System.out.println(course.getDiscipline().getName() + " - " + course.getGrade());
+        out.println(course.getDiscipline().getName() + " - " + course.getGrade());
       } else if (course.isEnrolled()) {
         ungradedCourses.add(course.getDiscipline());
       }
     }
 
-    System.out.println("Ungraded courses:");
+    out.println("Ungraded courses:");
     for (Discipline discipline : ungradedCourses) {
-      System.out.println(discipline.getName());
+      out.println(discipline.getName());
     }
 
-    double averageGrade = (gradedCoursesCount > 0) ? (totalGrade / gradedCoursesCount) : 0;
-    System.out.println("Average grade: " + averageGrade);
+    out.println("Average grade: " + student.getAverageGrade());
   }
 }